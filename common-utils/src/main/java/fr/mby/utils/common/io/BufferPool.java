@@ -0,0 +1,199 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.mby.utils.common.io;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte arrays shared by many buffers. Arrays are sized by power of two classes. Each thread keeps a few arrays
+ * of each class in a local cache before giving them back to the shared queues. Arrays bigger than the max size are not
+ * pooled.
+ *
+ * The pool never zero the arrays : a borrower must not read what it did not write.
+ *
+ * @author Maxime Bossard - 2013
+ *
+ */
+public class BufferPool {
+
+	private static final int DEFAULT_MIN_SIZE = 1024;
+
+	private static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+
+	private static final int DEFAULT_MAX_POOLED_PER_CLASS = 64;
+
+	/** Arrays of each class kept in a thread local cache. */
+	private static final int THREAD_CACHE_SIZE = 4;
+
+	private final int minShift;
+
+	private final int maxShift;
+
+	private final int maxPooledPerClass;
+
+	private final Queue<byte[]>[] pooled;
+
+	private final AtomicInteger[] pooledCounts;
+
+	private final AtomicLong allocations = new AtomicLong();
+
+	private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+
+		@Override
+		protected ThreadCache initialValue() {
+			return new ThreadCache(BufferPool.this.pooled.length);
+		}
+	};
+
+	public BufferPool() {
+		this(BufferPool.DEFAULT_MIN_SIZE, BufferPool.DEFAULT_MAX_SIZE, BufferPool.DEFAULT_MAX_POOLED_PER_CLASS);
+	}
+
+	/**
+	 * @param minSize
+	 *            size of the smallest class, rounded up to a power of two
+	 * @param maxSize
+	 *            size of the biggest class, rounded up to a power of two
+	 * @param maxPooledPerClass
+	 *            max number of arrays of each class kept in the shared queues
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	public BufferPool(final int minSize, final int maxSize, final int maxPooledPerClass) {
+		if (minSize < 1 || maxSize < minSize || maxSize > 1 << 30) {
+			throw new IllegalArgumentException("Bad pool sizes: [" + minSize + ", " + maxSize + "]");
+		}
+		if (maxPooledPerClass < 0) {
+			throw new IllegalArgumentException("Bad max pooled arrays per class: " + maxPooledPerClass);
+		}
+
+		this.minShift = BufferPool.ceilShift(minSize);
+		this.maxShift = BufferPool.ceilShift(maxSize);
+		this.maxPooledPerClass = maxPooledPerClass;
+
+		final int classCount = this.maxShift - this.minShift + 1;
+		this.pooled = new Queue[classCount];
+		this.pooledCounts = new AtomicInteger[classCount];
+		for (int k = 0; k < classCount; k++) {
+			this.pooled[k] = new ConcurrentLinkedQueue<byte[]>();
+			this.pooledCounts[k] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Borrow an array from the pool.
+	 *
+	 * @param size
+	 *            the min size of the array
+	 * @return an array of at least size bytes, with unspecified content
+	 */
+	public byte[] acquire(final int size) {
+		final int shift = BufferPool.ceilShift(Math.max(size, 1 << this.minShift));
+		if (shift > this.maxShift) {
+			this.allocations.incrementAndGet();
+			return new byte[size];
+		}
+
+		final int sizeClass = shift - this.minShift;
+		byte[] buffer = this.threadCache.get().pop(sizeClass);
+		if (buffer == null) {
+			buffer = this.pooled[sizeClass].poll();
+			if (buffer != null) {
+				this.pooledCounts[sizeClass].decrementAndGet();
+			} else {
+				this.allocations.incrementAndGet();
+				buffer = new byte[1 << shift];
+			}
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Give back an array to the pool. The caller must not use it anymore.
+	 *
+	 * @param buffer
+	 *            an array borrowed from the pool
+	 */
+	public void release(final byte[] buffer) {
+		final int shift = Integer.numberOfTrailingZeros(buffer.length);
+		if (buffer.length != 1 << shift || shift < this.minShift || shift > this.maxShift) {
+			// Not a pooled array
+			return;
+		}
+
+		final int sizeClass = shift - this.minShift;
+		if (!this.threadCache.get().push(sizeClass, buffer)) {
+			if (this.pooledCounts[sizeClass].incrementAndGet() <= this.maxPooledPerClass) {
+				this.pooled[sizeClass].offer(buffer);
+			} else {
+				this.pooledCounts[sizeClass].decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of arrays allocated by the pool since its creation
+	 */
+	public long getAllocationCount() {
+		return this.allocations.get();
+	}
+
+	private static int ceilShift(final int size) {
+		return 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+
+	/**
+	 * Small stacks of arrays confined to one thread.
+	 *
+	 * @author Maxime Bossard - 2013
+	 *
+	 */
+	private static class ThreadCache {
+
+		private final byte[][][] stacks;
+
+		private final int[] sizes;
+
+		private ThreadCache(final int classCount) {
+			this.stacks = new byte[classCount][BufferPool.THREAD_CACHE_SIZE][];
+			this.sizes = new int[classCount];
+		}
+
+		private byte[] pop(final int sizeClass) {
+			if (this.sizes[sizeClass] == 0) {
+				return null;
+			}
+			final int top = --this.sizes[sizeClass];
+			final byte[] buffer = this.stacks[sizeClass][top];
+			this.stacks[sizeClass][top] = null;
+			return buffer;
+		}
+
+		private boolean push(final int sizeClass, final byte[] buffer) {
+			if (this.sizes[sizeClass] == BufferPool.THREAD_CACHE_SIZE) {
+				return false;
+			}
+			this.stacks[sizeClass][this.sizes[sizeClass]++] = buffer;
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.mby.utils.common.io;
+
+/**
+ * Receiver of the activity of a StreamRepository. Called on the hot paths of the repository, so an implementation must
+ * be thread safe and cheap : no lock, no IO.
+ * 
+ * @author Maxime Bossard - 2013
+ * 
+ */
+public interface IStreamRepositoryMetrics {
+
+	/**
+	 * Bytes written in the repository, committed or not.
+	 * 
+	 * @param count
+	 *            number of bytes
+	 */
+	void bytesWritten(long count);
+
+	/**
+	 * Bytes read by any reader of the repository.
+	 * 
+	 * @param count
+	 *            number of bytes
+	 */
+	void bytesRead(long count);
+
+	/**
+	 * A commit was published.
+	 * 
+	 * @param bytes
+	 *            number of bytes committed
+	 * @param latencyNanos
+	 *            duration of the flush, lock wait included
+	 */
+	void committed(long bytes, long latencyNanos);
+
+	/**
+	 * Time spent waiting for the lock of the repository.
+	 * 
+	 * @param nanos
+	 *            the wait duration
+	 */
+	void lockWaited(long nanos);
+
+	/**
+	 * Occupancy of the repository after a change of its content.
+	 * 
+	 * @param bufferedBytes
+	 *            number of committed bytes not truncated
+	 * @param chunkCount
+	 *            number of chunks held by the repository
+	 */
+	void bufferOccupancy(long bufferedBytes, int chunkCount);
+
+}
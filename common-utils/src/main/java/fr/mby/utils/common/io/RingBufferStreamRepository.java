@@ -0,0 +1,422 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.mby.utils.common.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock free single producer / single consumer pipe baked by a ring buffer. Only one thread may write in the
+ * OutputStream and only one thread may read the InputStream.
+ *
+ * The producer publish the written bytes with an ordered write of the tail index, the consumer release the read bytes
+ * with an ordered write of the head index. No monitor is taken on the read and write paths. With a batch size, the
+ * producer only publish its writes each time batch size bytes are pending, or when flushed. The consumer waits while
+ * the ring is empty, the producer waits while the ring is full, following the configured {@link WaitStrategy}.
+ *
+ * Closing the OutputStream signal the end of stream to the consumer. Closing the InputStream makes the next producer
+ * writes fail, and wakes up a producer waiting for space.
+ *
+ * @author Maxime Bossard - 2013
+ *
+ */
+public class RingBufferStreamRepository {
+
+	/** Default ring capacity. */
+	private static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/** Spins before a spinning thread yield. */
+	private static final int SPIN_TRIES = 100;
+
+	/** Max park duration of the parking strategy. */
+	private static final long MAX_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/** Park duration of the blocking strategy, only a safety net as the waiters are signalled. */
+	private static final long BLOCKING_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final byte[] ring;
+
+	private final int mask;
+
+	private final int batchSize;
+
+	private final WaitStrategy waitStrategy;
+
+	/** Next position to read. Written by the consumer only. */
+	private final Sequence head = new Sequence();
+
+	/** Next position to write. Written by the producer only. */
+	private final Sequence tail = new Sequence();
+
+	private volatile boolean producerClosed = false;
+
+	private volatile boolean consumerClosed = false;
+
+	/** Thread blocked waiting for the other side, with the BLOCKING strategy. */
+	private volatile Thread waitingProducer;
+
+	private volatile Thread waitingConsumer;
+
+	private final InputStreamRingBuffer inputStream;
+
+	private final OutputStreamRingBuffer outputStream;
+
+	/**
+	 * How a thread waits for the other side of the pipe.
+	 *
+	 * @author Maxime Bossard - 2013
+	 *
+	 */
+	public enum WaitStrategy {
+		/** Park until the other side signal progress. Lowest CPU usage. */
+		BLOCKING,
+		/** Busy spin, yielding from time to time. Lowest latency, burns a core. */
+		SPINNING,
+		/** Park for short increasing durations, without signalling. */
+		PARKING;
+	}
+
+	public RingBufferStreamRepository() {
+		this(RingBufferStreamRepository.DEFAULT_CAPACITY, WaitStrategy.BLOCKING, 0);
+	}
+
+	/**
+	 * @param capacity
+	 *            the ring capacity, rounded up to the next power of two
+	 * @param waitStrategy
+	 *            how the threads wait for each other
+	 * @param batchSize
+	 *            the number of written bytes published at once, 0 to publish each write
+	 */
+	public RingBufferStreamRepository(final int capacity, final WaitStrategy waitStrategy, final int batchSize) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Bad capacity: " + capacity);
+		}
+		if (waitStrategy == null) {
+			throw new IllegalArgumentException("No WaitStrategy provided !");
+		}
+		if (batchSize < 0) {
+			throw new IllegalArgumentException("Bad batch size: " + batchSize);
+		}
+
+		final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+		this.ring = new byte[size];
+		this.mask = size - 1;
+		this.batchSize = Math.min(batchSize, size);
+		this.waitStrategy = waitStrategy;
+
+		this.inputStream = new InputStreamRingBuffer();
+		this.outputStream = new OutputStreamRingBuffer();
+	}
+
+	public InputStream getInputStream() {
+		return this.inputStream;
+	}
+
+	public OutputStream getOutputStream() {
+		return this.outputStream;
+	}
+
+	public int getCapacity() {
+		return this.ring.length;
+	}
+
+	/**
+	 * Wait for the other side of the pipe.
+	 *
+	 * @param tries
+	 *            number of times the caller already waited for the same condition
+	 * @param producer
+	 *            true if the producer is waiting
+	 */
+	protected void await(final int tries, final boolean producer) throws InterruptedIOException {
+		switch (this.waitStrategy) {
+			case SPINNING :
+				if (tries % RingBufferStreamRepository.SPIN_TRIES == 0) {
+					Thread.yield();
+				}
+				break;
+			case PARKING :
+				LockSupport.parkNanos(Math.min(1L << Math.min(tries, 20), RingBufferStreamRepository.MAX_PARK_NANOS));
+				break;
+			case BLOCKING :
+			default :
+				if (tries < RingBufferStreamRepository.SPIN_TRIES) {
+					// Spin a little before registering as waiter
+					break;
+				}
+				final Thread current = Thread.currentThread();
+				if (producer && this.waitingProducer != current) {
+					// Register then return, so the caller re-check its condition before parking
+					this.waitingProducer = current;
+				} else if (!producer && this.waitingConsumer != current) {
+					this.waitingConsumer = current;
+				} else {
+					LockSupport.parkNanos(this, RingBufferStreamRepository.BLOCKING_PARK_NANOS);
+				}
+				break;
+		}
+
+		if (Thread.interrupted()) {
+			throw new InterruptedIOException("Interrupted while waiting on the ring buffer !");
+		}
+	}
+
+	/**
+	 * Publish a new index value. Ordered write only, unless a waiting thread must see it before we read its
+	 * registration.
+	 */
+	protected void publish(final AtomicLong sequence, final long value) {
+		if (this.waitStrategy == WaitStrategy.BLOCKING) {
+			sequence.set(value);
+		} else {
+			sequence.lazySet(value);
+		}
+	}
+
+	protected void signal(final boolean producer) {
+		if (this.waitStrategy == WaitStrategy.BLOCKING) {
+			final Thread waiter;
+			if (producer) {
+				waiter = this.waitingProducer;
+				this.waitingProducer = null;
+			} else {
+				waiter = this.waitingConsumer;
+				this.waitingConsumer = null;
+			}
+			if (waiter != null) {
+				LockSupport.unpark(waiter);
+			}
+		}
+	}
+
+	private class InputStreamRingBuffer extends InputStream {
+
+		/** Consumer local copy of the head. */
+		private long readPosition = 0;
+
+		/** Consumer local cache of the last tail read. */
+		private long tailCache = 0;
+
+		@Override
+		public int read() throws IOException {
+			if (this.awaitData() < 1) {
+				return -1;
+			}
+
+			final RingBufferStreamRepository repo = RingBufferStreamRepository.this;
+			final int b = repo.ring[(int) this.readPosition & repo.mask] & 0xff;
+			this.release(1);
+
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (off < 0 || len < 0 || len > b.length - off) {
+				throw new IndexOutOfBoundsException();
+			} else if (len == 0) {
+				return 0;
+			}
+
+			final int available = this.awaitData();
+			if (available < 1) {
+				return -1;
+			}
+
+			final RingBufferStreamRepository repo = RingBufferStreamRepository.this;
+			final int length = Math.min(len, available);
+			final int offset = (int) this.readPosition & repo.mask;
+			final int firstPart = Math.min(length, repo.ring.length - offset);
+			System.arraycopy(repo.ring, offset, b, off, firstPart);
+			if (firstPart < length) {
+				System.arraycopy(repo.ring, 0, b, off + firstPart, length - firstPart);
+			}
+			this.release(length);
+
+			return length;
+		}
+
+		@Override
+		public int available() throws IOException {
+			this.tailCache = RingBufferStreamRepository.this.tail.get();
+			return (int) (this.tailCache - this.readPosition);
+		}
+
+		@Override
+		public void close() throws IOException {
+			RingBufferStreamRepository.this.consumerClosed = true;
+			RingBufferStreamRepository.this.signal(true);
+		}
+
+		/**
+		 * Wait for some bytes to read.
+		 *
+		 * @return the number of readable bytes, 0 at the end of the stream
+		 */
+		private int awaitData() throws IOException {
+			final RingBufferStreamRepository repo = RingBufferStreamRepository.this;
+			if (repo.consumerClosed) {
+				throw new IOException("Stream closed !");
+			}
+
+			int tries = 0;
+			while (this.tailCache == this.readPosition) {
+				this.tailCache = repo.tail.get();
+				if (this.tailCache == this.readPosition) {
+					if (repo.producerClosed) {
+						// Last chance to read the bytes published on close
+						this.tailCache = repo.tail.get();
+						if (this.tailCache == this.readPosition) {
+							return 0;
+						}
+					} else {
+						repo.await(tries++, false);
+					}
+				}
+			}
+
+			return (int) (this.tailCache - this.readPosition);
+		}
+
+		private void release(final int length) {
+			this.readPosition += length;
+			RingBufferStreamRepository.this.publish(RingBufferStreamRepository.this.head, this.readPosition);
+			RingBufferStreamRepository.this.signal(true);
+		}
+
+	}
+
+	private class OutputStreamRingBuffer extends OutputStream {
+
+		/** Producer local copy of the tail, including the not yet published bytes. */
+		private long writePosition = 0;
+
+		/** Producer local cache of the last head read. */
+		private long headCache = 0;
+
+		private final byte[] single = new byte[1];
+
+		@Override
+		public void write(final int b) throws IOException {
+			this.single[0] = (byte) b;
+			this.write(this.single, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			if (off < 0 || len < 0 || len > b.length - off) {
+				throw new IndexOutOfBoundsException();
+			}
+
+			final RingBufferStreamRepository repo = RingBufferStreamRepository.this;
+			int written = 0;
+			while (written < len) {
+				final int free = this.awaitSpace();
+				final int length = Math.min(len - written, free);
+				final int offset = (int) this.writePosition & repo.mask;
+				final int firstPart = Math.min(length, repo.ring.length - offset);
+				System.arraycopy(b, off + written, repo.ring, offset, firstPart);
+				if (firstPart < length) {
+					System.arraycopy(b, off + written + firstPart, repo.ring, 0, length - firstPart);
+				}
+				this.writePosition += length;
+				written += length;
+
+				if (this.writePosition - repo.tail.get() >= repo.batchSize) {
+					this.publish();
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.publish();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.publish();
+			RingBufferStreamRepository.this.producerClosed = true;
+			RingBufferStreamRepository.this.signal(false);
+		}
+
+		/**
+		 * Wait for some free space in the ring.
+		 *
+		 * @return the number of writable bytes
+		 */
+		private int awaitSpace() throws IOException {
+			final RingBufferStreamRepository repo = RingBufferStreamRepository.this;
+			if (repo.producerClosed) {
+				throw new IOException("Stream closed !");
+			}
+			if (repo.consumerClosed) {
+				throw new IOException("Pipe closed by the consumer !");
+			}
+
+			final int capacity = repo.ring.length;
+			int tries = 0;
+			while (this.writePosition - this.headCache == capacity) {
+				this.headCache = repo.head.get();
+				if (this.writePosition - this.headCache == capacity) {
+					// Never wait with unpublished bytes : the consumer may be waiting for them
+					this.publish();
+					if (repo.consumerClosed) {
+						throw new IOException("Pipe closed by the consumer !");
+					}
+					repo.await(tries++, true);
+				}
+			}
+
+			return (int) (capacity - (this.writePosition - this.headCache));
+		}
+
+		private void publish() {
+			final RingBufferStreamRepository repo = RingBufferStreamRepository.this;
+			if (repo.tail.get() != this.writePosition) {
+				repo.publish(repo.tail, this.writePosition);
+				repo.signal(false);
+			}
+		}
+
+	}
+
+	/**
+	 * Index followed by padding, so that the fields allocated after it do not share its cache line. Only the object
+	 * header precedes the value.
+	 *
+	 * @author Maxime Bossard - 2013
+	 *
+	 */
+	@SuppressWarnings({"serial", "unused"})
+	private static class Sequence extends AtomicLong {
+
+		private long p1, p2, p3, p4, p5, p6, p7;
+
+		public long sumPaddingToPreventOptimisation() {
+			return this.p1 + this.p2 + this.p3 + this.p4 + this.p5 + this.p6 + this.p7;
+		}
+
+	}
+
+}
@@ -16,11 +16,24 @@
 
 package fr.mby.utils.common.io;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -30,22 +43,76 @@ import org.apache.logging.log4j.Logger;
  * OutputStream commit the changes in the repository. Flush the OutputStream move cursor position of the InputStream to
  * the begining. Reset the InputStream clear the repository.
  * 
+ * Each flush creates a new numbered commit, appended to a log of immutable segments. Committed content is never
+ * modified : truncating the repository only moves its start, and a compaction later drops the truncated segments and
+ * merges the small ones.
+ * 
+ * Any number of independent readers can be opened with {@link #openInputStream()}, or with
+ * {@link #openInputStream(long)} at a given commit. Each reader has its own cursor and reads a consistent snapshot of
+ * the committed content, without taking the writer lock. The shared InputStream does not take the writer lock either :
+ * its reads are optimistic, validated against a stamp replaced by each commit, and retried if a commit landed during
+ * the read.
+ * 
+ * Pipe readers opened with {@link #openPipeInputStream(long, TimeUnit)} follow the commits instead : at the end of the
+ * committed content, their reads block until a writer commits more data or the repository is closed.
+ * 
+ * The OutputStream writes directly in chunks of bufferSize bytes, which may be borrowed from a {@link BufferPool}
+ * shared by many repositories. Pooled chunks are given back when their whole content is truncated, or when the
+ * repository is closed, as long as no reader opened on the repository is still open.
+ * 
+ * With compression enabled, each chunk is a block compressed independently once full and committed. A reader only
+ * inflates the blocks it reads, so random access by skipping stays cheap.
+ * 
+ * The activity of the repository can be reported to an IStreamRepositoryMetrics, like a StreamRepositoryStats exposed
+ * through JMX. Without metrics, nothing is measured.
+ * 
  * 
  * @author Maxime Bossard - 2013
  * 
  */
-public class StreamRepository {
+public class StreamRepository implements Closeable {
 
 	/** Logger. */
 	private static final Logger LOG = LogManager.getLogger(StreamRepository.class);
 
+	/** Segments smaller than this size are merged together by the compaction. */
+	private static final int COMPACTION_SEGMENT_SIZE = 64 * 1024;
+
+	/** A block is only kept compressed if it saves at least 1/MIN_COMPRESSION_GAIN of its size. */
+	private static final int MIN_COMPRESSION_GAIN = 8;
+
 	private final Object lock = new Object();
 
-	private int index = 0;
+	/** Monitor the pipe readers wait on for new commits. */
+	private final Object commitSignal = new Object();
+
+	/** Number of pipe readers waiting on commitSignal. */
+	private volatile int waitingReaders = 0;
+
+	private volatile boolean closed = false;
 
 	private final int bufferSize;
 
-	private final byte[] buffer;
+	/** Pool the chunks are borrowed from, null if not pooled. */
+	private final BufferPool bufferPool;
+
+	/** Compress the full chunks ? */
+	private final boolean compression;
+
+	/** Receiver of the activity, null if not measured. */
+	private final IStreamRepositoryMetrics metrics;
+
+	/** Chunks in use, by order of position. */
+	private final Deque<Chunk> ownedChunks = new ArrayDeque<Chunk>();
+
+	/** Number of readers not yet closed. Pooled chunks cannot be recycled while some reader may read them. */
+	private final AtomicInteger openReaders = new AtomicInteger();
+
+	/** Last committed content, published to the readers without locking. */
+	private volatile Snapshot committed = Snapshot.initial();
+
+	/** Number of segments appended since the last compaction. */
+	private int uncompactedSegments = 0;
 
 	private final InputStreamRepository inputStreamRepo;
 
@@ -56,9 +123,51 @@ public class StreamRepository {
 	}
 
 	public StreamRepository(final int bufferSize) {
-		this.bufferSize = bufferSize;
+		this(bufferSize, null);
+	}
+
+	/**
+	 * @param bufferSize
+	 *            the size of the chunks the content is written in
+	 * @param bufferPool
+	 *            the pool to borrow the chunks from, null to allocate them
+	 */
+	public StreamRepository(final int bufferSize, final BufferPool bufferPool) {
+		this(bufferSize, bufferPool, false);
+	}
+
+	/**
+	 * @param bufferSize
+	 *            the size of the chunks the content is written in, which are also the compression blocks
+	 * @param bufferPool
+	 *            the pool to borrow the chunks from, null to allocate them
+	 * @param compression
+	 *            true to compress the committed content by blocks
+	 */
+	public StreamRepository(final int bufferSize, final BufferPool bufferPool, final boolean compression) {
+		this(bufferSize, bufferPool, compression, null);
+	}
 
-		this.buffer = new byte[this.bufferSize];
+	/**
+	 * @param bufferSize
+	 *            the size of the chunks the content is written in, which are also the compression blocks
+	 * @param bufferPool
+	 *            the pool to borrow the chunks from, null to allocate them
+	 * @param compression
+	 *            true to compress the committed content by blocks
+	 * @param metrics
+	 *            the receiver of the repository activity, null to not measure it
+	 */
+	public StreamRepository(final int bufferSize, final BufferPool bufferPool, final boolean compression,
+			final IStreamRepositoryMetrics metrics) {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("Bad buffer size: " + bufferSize);
+		}
+
+		this.bufferSize = bufferSize;
+		this.bufferPool = bufferPool;
+		this.compression = compression;
+		this.metrics = metrics;
 
 		this.inputStreamRepo = new InputStreamRepository();
 		this.outputStreamRepo = new OutputStreamRepository();
@@ -72,43 +181,944 @@ public class StreamRepository {
 		return this.outputStreamRepo;
 	}
 
-	private class InputStreamRepository extends ByteArrayInputStream {
+	/**
+	 * @return the number of the last commit, 0 before the first flush
+	 */
+	public long getVersion() {
+		return this.committed.getVersion();
+	}
+
+	/**
+	 * @return the number of the oldest commit a reader can be opened at
+	 */
+	public long getOldestVersion() {
+		return this.committed.firstVersion;
+	}
+
+	/**
+	 * Open a new independent reader on the repository. The reader own its cursor and read the content committed at the
+	 * time it was opened. Later commits and resets of the repository are not visible by the reader.
+	 * 
+	 * @return a new InputStream on the committed content
+	 */
+	public InputStream openInputStream() {
+		this.openReaders.incrementAndGet();
+		final Snapshot snapshot = this.committed;
+
+		return new SnapshotInputStream(snapshot, snapshot.getEnd(), this.openReaders, this.metrics);
+	}
+
+	/**
+	 * Open a new independent reader on the content of the repository as it was at a given commit.
+	 * 
+	 * @param version
+	 *            the commit number, between the oldest version and the current version
+	 * @return a new InputStream on the committed content
+	 * @throws IllegalArgumentException
+	 *             if the commit does not exist or was truncated
+	 */
+	public InputStream openInputStream(final long version) throws IllegalArgumentException {
+		this.openReaders.incrementAndGet();
+		final Snapshot snapshot = this.committed;
+		final long limit;
+		try {
+			limit = snapshot.getCommitEnd(version);
+		} catch (final IllegalArgumentException e) {
+			this.openReaders.decrementAndGet();
+			throw e;
+		}
+
+		return new SnapshotInputStream(snapshot, limit, this.openReaders, this.metrics);
+	}
+
+	/**
+	 * Open a new pipe reader on the repository, blocking without timeout.
+	 * 
+	 * @return a new blocking InputStream on the committed content
+	 */
+	public InputStream openPipeInputStream() {
+		return this.openPipeInputStream(0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Open a new pipe reader on the repository. The reader own its cursor, starting at the begining of the committed
+	 * content. At the end of the committed content, a read blocks until new data is committed, or returns -1 if the
+	 * repository is closed. A truncation of the repository moves the cursor to the new begining if needed.
+	 * 
+	 * @param timeout
+	 *            the max time a read waits for a commit, 0 to wait forever
+	 * @param unit
+	 *            the timeout unit
+	 * @return a new blocking InputStream on the committed content
+	 */
+	public InputStream openPipeInputStream(final long timeout, final TimeUnit unit) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Negative timeout: " + timeout);
+		}
+
+		this.openReaders.incrementAndGet();
+		return new PipeInputStream(unit.toNanos(timeout));
+	}
+
+	/**
+	 * Drop the content of all the commits up to a version, included. The readers already opened are not impacted.
+	 * 
+	 * @param version
+	 *            the last commit to drop
+	 * @throws IllegalArgumentException
+	 *             if the commit does not exist or was already truncated
+	 */
+	public void truncate(final long version) throws IllegalArgumentException {
+		synchronized (this.lock) {
+			this.committed = this.committed.truncate(version);
+			this.releaseChunks(false);
+			this.reportOccupancy();
+		}
+	}
+
+	/**
+	 * Drop the truncated segments and merge the small ones. The readers already opened are not impacted.
+	 */
+	public void compact() {
+		synchronized (this.lock) {
+			final Snapshot snapshot = this.committed;
+			if (this.uncompactedSegments > 0 || snapshot.segmentFrom > 0 || snapshot.commitFrom > 0) {
+				this.committed = snapshot.compact(StreamRepository.COMPACTION_SEGMENT_SIZE);
+				this.uncompactedSegments = 0;
+			}
+		}
+	}
+
+	/**
+	 * Compact periodically the repository in background.
+	 * 
+	 * @param executor
+	 *            the executor running the compaction
+	 * @param period
+	 *            the delay between two compactions
+	 * @param unit
+	 *            the period unit
+	 * @return the future to cancel to stop the compaction
+	 */
+	public ScheduledFuture<?> scheduleCompaction(final ScheduledExecutorService executor, final long period,
+			final TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					StreamRepository.this.compact();
+				} catch (final RuntimeException e) {
+					StreamRepository.LOG.error("Error during StreamRepository compaction !", e);
+				}
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Close the repository : no more data can be committed and the pipe readers reach the end of stream after reading
+	 * the committed content. If the repository is pooled and no reader is open, its content is dropped and its chunks
+	 * are given back to the pool.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this.outputStreamRepo) {
+			synchronized (this.lock) {
+				this.closed = true;
+				if (this.bufferPool != null && this.openReaders.get() == 0) {
+					this.committed = this.committed.truncate(this.committed.getVersion());
+					this.outputStreamRepo.discard();
+					this.releaseChunks(true);
+					this.reportOccupancy();
+				}
+			}
+			this.outputStreamRepo.endCompression();
+		}
+		synchronized (this.commitSignal) {
+			this.commitSignal.notifyAll();
+		}
+	}
+
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * Borrow a new chunk to write in.
+	 */
+	private Chunk acquireChunk() {
+		final byte[] data;
+		if (this.bufferPool == null) {
+			data = new byte[this.bufferSize];
+		} else {
+			data = this.bufferPool.acquire(this.bufferSize);
+		}
+
+		final Chunk chunk = new Chunk(data);
+		synchronized (this.lock) {
+			this.ownedChunks.addLast(chunk);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Forget the chunks whose content is truncated, and give them back to the pool if no reader may read them. The chunk
+	 * currently written is kept. Called under the lock.
+	 * 
+	 * @param all
+	 *            true to give back all the chunks, including the current one
+	 */
+	private void releaseChunks(final boolean all) {
+		// While readers may still read the chunks, only forget them and let the GC collect them
+		final boolean recycle = this.bufferPool != null && this.openReaders.get() == 0;
+		final int kept = all ? 0 : 1;
+
+		boolean invalidated = false;
+		while (this.ownedChunks.size() > kept && (all || this.ownedChunks.peekFirst().end <= this.committed.start)) {
+			final Chunk chunk = this.ownedChunks.pollFirst();
+			if (recycle) {
+				if (!invalidated) {
+					// Optimistic reads in progress must not validate what they read in a recycled chunk
+					this.inputStreamRepo.invalidate();
+					invalidated = true;
+				}
+				this.bufferPool.release(chunk.data);
+			}
+		}
+	}
+
+	/**
+	 * Replace the segments of a full chunk by its compressed block.
+	 * 
+	 * @param chunk
+	 *            the compressed chunk
+	 * @param block
+	 *            the compressed segment covering the whole chunk content
+	 */
+	private void replaceByBlock(final Chunk chunk, final Segment block) {
+		synchronized (this.lock) {
+			final Snapshot replaced = this.committed.replace(chunk.data, block);
+			if (replaced != null) {
+				this.committed = replaced;
+				if (this.ownedChunks.remove(chunk) && this.bufferPool != null && this.openReaders.get() == 0) {
+					this.inputStreamRepo.invalidate();
+					this.bufferPool.release(chunk.data);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Report the occupancy of the repository to the metrics. Called under the lock.
+	 */
+	private void reportOccupancy() {
+		if (this.metrics != null) {
+			final Snapshot snapshot = this.committed;
+			this.metrics.bufferOccupancy(snapshot.getEnd() - snapshot.start, this.ownedChunks.size());
+		}
+	}
+
+	/**
+	 * Wake up the pipe readers waiting for a commit. Only take the signal monitor if someone is waiting.
+	 */
+	private void signalCommit() {
+		if (this.waitingReaders > 0) {
+			synchronized (this.commitSignal) {
+				this.commitSignal.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Immutable part of a commit content.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private static final class Segment {
+
+		/** Position of the first byte in the repository since its creation. */
+		private final long offset;
+
+		private final byte[] data;
+
+		/** Position of the first byte in data. */
+		private final int dataOffset;
+
+		/** Length of the content. */
+		private final int length;
+
+		/** Length of the deflated content in data, 0 if the content is not compressed. */
+		private final int compressedLength;
+
+		private Segment(final long offset, final byte[] data, final int dataOffset, final int length) {
+			this(offset, data, dataOffset, length, 0);
+		}
+
+		private Segment(final long offset, final byte[] data, final int dataOffset, final int length,
+				final int compressedLength) {
+			this.offset = offset;
+			this.data = data;
+			this.dataOffset = dataOffset;
+			this.length = length;
+			this.compressedLength = compressedLength;
+		}
+
+		private boolean isCompressed() {
+			return this.compressedLength > 0;
+		}
+
+		private long getEnd() {
+			return this.offset + this.length;
+		}
+
+	}
+
+	/**
+	 * Immutable view of the committed content. The segments and commit arrays are append only and shared between
+	 * successive snapshots : a snapshot never reads after its own bounds, and the writer never writes before them.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private static final class Snapshot {
+
+		private static final int INITIAL_LOG_SIZE = 16;
+
+		private final Segment[] segments;
+
+		private final int segmentFrom;
+
+		private final int segmentTo;
+
+		/** End position of each commit content. */
+		private final long[] commitEnds;
+
+		private final int commitFrom;
+
+		private final int commitTo;
+
+		/** Version of the commit at commitFrom. */
+		private final long firstVersion;
+
+		/** Position of the first readable byte. */
+		private final long start;
+
+		private Snapshot(final Segment[] segments, final int segmentFrom, final int segmentTo,
+				final long[] commitEnds, final int commitFrom, final int commitTo, final long firstVersion,
+				final long start) {
+			this.segments = segments;
+			this.segmentFrom = segmentFrom;
+			this.segmentTo = segmentTo;
+			this.commitEnds = commitEnds;
+			this.commitFrom = commitFrom;
+			this.commitTo = commitTo;
+			this.firstVersion = firstVersion;
+			this.start = start;
+		}
+
+		private static Snapshot initial() {
+			return new Snapshot(new Segment[Snapshot.INITIAL_LOG_SIZE], 0, 0, new long[Snapshot.INITIAL_LOG_SIZE],
+					0, 1, 0, 0);
+		}
+
+		private long getVersion() {
+			return this.firstVersion + this.commitTo - this.commitFrom - 1;
+		}
+
+		private long getEnd() {
+			return this.commitEnds[this.commitTo - 1];
+		}
+
+		private long getCommitEnd(final long version) {
+			if (version < this.firstVersion || version > this.getVersion()) {
+				throw new IllegalArgumentException("Unknown or truncated commit: " + version);
+			}
+			return this.commitEnds[this.commitFrom + (int) (version - this.firstVersion)];
+		}
+
+		/**
+		 * @return the segment containing the position
+		 */
+		private Segment find(final long position) {
+			int low = this.segmentFrom;
+			int high = this.segmentTo - 1;
+			while (low <= high) {
+				final int middle = (low + high) >>> 1;
+				final Segment segment = this.segments[middle];
+				if (position < segment.offset) {
+					high = middle - 1;
+				} else if (position >= segment.getEnd()) {
+					low = middle + 1;
+				} else {
+					return segment;
+				}
+			}
+			throw new IllegalStateException("No segment found at position: " + position);
+		}
+
+		/**
+		 * @param commitSegments
+		 *            the new commit content, empty for an empty commit
+		 * @return a new snapshot including the new commit
+		 */
+		private Snapshot append(final List<Segment> commitSegments) {
+			Segment[] segs = this.segments;
+			int segFrom = this.segmentFrom;
+			int segTo = this.segmentTo;
+			for (final Segment segment : commitSegments) {
+				if (segTo == segs.length) {
+					segs = Arrays.copyOfRange(segs, segFrom,
+							segFrom + Math.max(Snapshot.INITIAL_LOG_SIZE, 2 * (segTo - segFrom)));
+					segTo -= segFrom;
+					segFrom = 0;
+				}
+				segs[segTo++] = segment;
+			}
+
+			long[] ends = this.commitEnds;
+			int comFrom = this.commitFrom;
+			int comTo = this.commitTo;
+			if (comTo == ends.length) {
+				ends = Arrays.copyOfRange(ends, comFrom, comFrom + 2 * (comTo - comFrom));
+				comTo -= comFrom;
+				comFrom = 0;
+			}
+			ends[comTo] = segTo > segFrom ? segs[segTo - 1].getEnd() : ends[comTo - 1];
+			comTo++;
+
+			return new Snapshot(segs, segFrom, segTo, ends, comFrom, comTo, this.firstVersion, this.start);
+		}
+
+		/**
+		 * @return a new snapshot starting at the end of the commit
+		 */
+		private Snapshot truncate(final long version) {
+			final long newStart = this.getCommitEnd(version);
+
+			int segFrom = this.segmentFrom;
+			while (segFrom < this.segmentTo && this.segments[segFrom].getEnd() <= newStart) {
+				segFrom++;
+			}
+
+			return new Snapshot(this.segments, segFrom, this.segmentTo, this.commitEnds, this.commitFrom
+					+ (int) (version - this.firstVersion), this.commitTo, version, newStart);
+		}
+
+		/**
+		 * @return a new snapshot with the same content in new arrays, where consecutive small segments are merged
+		 */
+		private Snapshot compact(final int segmentSize) {
+			final List<Segment> compacted = new ArrayList<Segment>(this.segmentTo - this.segmentFrom);
+
+			// Merge the runs of consecutive small segments
+			int runFrom = -1;
+			int runBytes = 0;
+			for (int k = this.segmentFrom; k < this.segmentTo; k++) {
+				final Segment segment = this.segments[k];
+				final boolean mergeable = segment.length < segmentSize && !segment.isCompressed();
+				if (runFrom >= 0 && (!mergeable || runBytes + segment.length > segmentSize)) {
+					compacted.add(this.merge(runFrom, k, runBytes));
+					runFrom = -1;
+				}
+
+				if (!mergeable) {
+					compacted.add(segment);
+				} else {
+					if (runFrom < 0) {
+						runFrom = k;
+						runBytes = 0;
+					}
+					runBytes += segment.length;
+				}
+			}
+			if (runFrom >= 0) {
+				compacted.add(this.merge(runFrom, this.segmentTo, runBytes));
+			}
+
+			final int segmentCount = compacted.size();
+			final Segment[] segs = compacted.toArray(new Segment[Math.max(Snapshot.INITIAL_LOG_SIZE,
+					2 * segmentCount)]);
+			final int commitCount = this.commitTo - this.commitFrom;
+			final long[] ends = Arrays.copyOfRange(this.commitEnds, this.commitFrom, this.commitFrom
+					+ Math.max(Snapshot.INITIAL_LOG_SIZE, 2 * commitCount));
+
+			return new Snapshot(segs, 0, segmentCount, ends, 0, commitCount, this.firstVersion, this.start);
+		}
+
+		/**
+		 * @param data
+		 *            the chunk whose segments are replaced
+		 * @param block
+		 *            the new segment covering exactly the same content
+		 * @return a new snapshot with the segments replaced, or null if the segments are not found as a whole
+		 */
+		private Snapshot replace(final byte[] data, final Segment block) {
+			int from = this.segmentFrom;
+			while (from < this.segmentTo && this.segments[from].data != data) {
+				from++;
+			}
+			int to = from;
+			while (to < this.segmentTo && this.segments[to].data == data) {
+				to++;
+			}
+			if (from == to || this.segments[from].offset != block.offset
+					|| this.segments[to - 1].getEnd() != block.getEnd()) {
+				// Truncated or compacted meanwhile
+				return null;
+			}
+
+			final int segmentCount = this.segmentTo - this.segmentFrom - (to - from) + 1;
+			final Segment[] segs = new Segment[Math.max(Snapshot.INITIAL_LOG_SIZE, 2 * segmentCount)];
+			System.arraycopy(this.segments, this.segmentFrom, segs, 0, from - this.segmentFrom);
+			segs[from - this.segmentFrom] = block;
+			System.arraycopy(this.segments, to, segs, from - this.segmentFrom + 1, this.segmentTo - to);
+
+			return new Snapshot(segs, 0, segmentCount, this.commitEnds, this.commitFrom, this.commitTo,
+					this.firstVersion, this.start);
+		}
+
+		private Segment merge(final int from, final int to, final int length) {
+			final Segment first = this.segments[from];
+			if (to - from == 1) {
+				return first;
+			}
+
+			// Segments written side by side in the same chunk are merged without copy
+			boolean contiguous = true;
+			for (int k = from + 1; k < to && contiguous; k++) {
+				final Segment previous = this.segments[k - 1];
+				contiguous = this.segments[k].data == first.data
+						&& this.segments[k].dataOffset == previous.dataOffset + previous.length;
+			}
+			if (contiguous) {
+				return new Segment(first.offset, first.data, first.dataOffset, length);
+			}
+
+			final byte[] data = new byte[length];
+			int position = 0;
+			for (int k = from; k < to; k++) {
+				final Segment segment = this.segments[k];
+				System.arraycopy(segment.data, segment.dataOffset, data, position, segment.length);
+				position += segment.length;
+			}
+
+			return new Segment(first.offset, data, 0, length);
+		}
+
+	}
+
+	/**
+	 * Position of a reader in the repository.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private static final class Cursor {
+
+		private long position;
+
+		/** Last segment read, to avoid searching it again on sequential reads of the same snapshot. */
+		private Segment segment;
+
+		private Snapshot segmentSnapshot;
+
+		private final byte[] single = new byte[1];
+
+		/** Last compressed segment read and its inflated content. */
+		private Segment inflatedSegment;
+
+		private byte[] inflated;
+
+		private Inflater inflater;
+
+		private Cursor(final long position) {
+			this.position = position;
+		}
 
 		/**
-		 * @param buf
+		 * @return the number of bytes readable before the limit, moving the cursor to the start of the snapshot if
+		 *         it was truncated
 		 */
-		public InputStreamRepository() {
-			super(StreamRepository.this.buffer);
+		private long remaining(final Snapshot snapshot, final long limit) {
+			if (this.position < snapshot.start) {
+				this.position = snapshot.start;
+			}
+			return limit - this.position;
+		}
+
+		private int read(final Snapshot snapshot, final long limit, final byte[] b, final int off, final int len) {
+			if (off < 0 || len < 0 || len > b.length - off) {
+				throw new IndexOutOfBoundsException();
+			}
+			if (this.remaining(snapshot, limit) <= 0) {
+				return -1;
+			}
+
+			int total = 0;
+			while (total < len && this.position < limit) {
+				if (this.segmentSnapshot != snapshot || this.position < this.segment.offset
+						|| this.position >= this.segment.getEnd()) {
+					this.segment = snapshot.find(this.position);
+					this.segmentSnapshot = snapshot;
+				}
+				final int segmentPosition = (int) (this.position - this.segment.offset);
+				final int length = (int) Math.min(Math.min(len - total, this.segment.length - segmentPosition), limit
+						- this.position);
+				if (this.segment.isCompressed()) {
+					System.arraycopy(this.inflate(this.segment), segmentPosition, b, off + total, length);
+				} else {
+					System.arraycopy(this.segment.data, this.segment.dataOffset + segmentPosition, b, off + total,
+							length);
+				}
+				total += length;
+				this.position += length;
+			}
+
+			return total;
+		}
+
+		private long skip(final Snapshot snapshot, final long limit, final long n) {
+			final long skipped = Math.max(0, Math.min(n, this.remaining(snapshot, limit)));
+			this.position += skipped;
+			return skipped;
+		}
+
+		/**
+		 * @return the content of a compressed segment, inflated once for consecutive reads
+		 */
+		private byte[] inflate(final Segment block) {
+			if (block != this.inflatedSegment) {
+				if (this.inflater == null) {
+					this.inflater = new Inflater();
+				}
+				if (this.inflated == null || this.inflated.length < block.length) {
+					this.inflated = new byte[block.length];
+				}
+
+				this.inflater.reset();
+				this.inflater.setInput(block.data, block.dataOffset, block.compressedLength);
+				try {
+					int inflatedLength = 0;
+					while (inflatedLength < block.length && !this.inflater.finished()) {
+						inflatedLength += this.inflater.inflate(this.inflated, inflatedLength, block.length
+								- inflatedLength);
+					}
+				} catch (final DataFormatException e) {
+					throw new IllegalStateException("Corrupted compressed block !", e);
+				}
+				this.inflatedSegment = block;
+			}
+
+			return this.inflated;
+		}
+
+		private void close() {
+			if (this.inflater != null) {
+				this.inflater.end();
+				this.inflater = null;
+			}
+			this.inflated = null;
+			this.inflatedSegment = null;
+		}
+
+	}
+
+	/**
+	 * Reader of a fixed snapshot. Not thread safe.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private static class SnapshotInputStream extends InputStream {
+
+		private final Snapshot snapshot;
+
+		private final long limit;
+
+		private final Cursor cursor;
+
+		private long mark;
+
+		private final byte[] single = new byte[1];
+
+		private final AtomicInteger openReaders;
+
+		private final IStreamRepositoryMetrics metrics;
+
+		private boolean closed = false;
+
+		private SnapshotInputStream(final Snapshot snapshot, final long limit, final AtomicInteger openReaders,
+				final IStreamRepositoryMetrics metrics) {
+			this.snapshot = snapshot;
+			this.limit = limit;
+			this.cursor = new Cursor(snapshot.start);
+			this.mark = snapshot.start;
+			this.openReaders = openReaders;
+			this.metrics = metrics;
 		}
 
 		@Override
 		public int read() {
-			synchronized (StreamRepository.this.lock) {
-				return super.read();
+			final int read = this.read(this.single, 0, 1);
+			return read < 1 ? -1 : this.single[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			final int read = this.cursor.read(this.snapshot, this.limit, b, off, len);
+			if (read > 0 && this.metrics != null) {
+				this.metrics.bytesRead(read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(final long n) {
+			return this.cursor.skip(this.snapshot, this.limit, n);
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, this.cursor.remaining(this.snapshot, this.limit));
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public void mark(final int readAheadLimit) {
+			this.mark = this.cursor.position;
+		}
+
+		@Override
+		public void reset() {
+			this.cursor.position = this.mark;
+		}
+
+		@Override
+		public void close() {
+			if (!this.closed) {
+				this.closed = true;
+				this.cursor.close();
+				this.openReaders.decrementAndGet();
+			}
+		}
+
+	}
+
+	/**
+	 * Reader following the commits of the repository.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private class PipeInputStream extends InputStream {
+
+		private final long timeoutNanos;
+
+		private final Cursor cursor;
+
+		private final byte[] single = new byte[1];
+
+		private boolean closed = false;
+
+		public PipeInputStream(final long timeoutNanos) {
+			this.timeoutNanos = timeoutNanos;
+			this.cursor = new Cursor(StreamRepository.this.committed.start);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int read = this.read(this.single, 0, 1);
+			return read < 1 ? -1 : this.single[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+
+			Snapshot snapshot = StreamRepository.this.committed;
+			if (this.cursor.remaining(snapshot, snapshot.getEnd()) <= 0) {
+				snapshot = this.awaitCommit();
+				if (snapshot == null) {
+					return -1;
+				}
+			}
+
+			final int read = this.cursor.read(snapshot, snapshot.getEnd(), b, off, len);
+			if (read > 0 && StreamRepository.this.metrics != null) {
+				StreamRepository.this.metrics.bytesRead(read);
+			}
+			return read;
+		}
+
+		@Override
+		public int available() {
+			final Snapshot snapshot = StreamRepository.this.committed;
+			return (int) Math.min(Integer.MAX_VALUE, this.cursor.remaining(snapshot, snapshot.getEnd()));
+		}
+
+		@Override
+		public void close() {
+			if (!this.closed) {
+				this.closed = true;
+				this.cursor.close();
+				StreamRepository.this.openReaders.decrementAndGet();
+			}
+		}
+
+		/**
+		 * Wait for some data after the cursor.
+		 * 
+		 * @return a snapshot with data to read, or null if the repository is closed
+		 */
+		private Snapshot awaitCommit() throws InterruptedIOException {
+			final Object signal = StreamRepository.this.commitSignal;
+			final long deadline = System.nanoTime() + this.timeoutNanos;
+
+			synchronized (signal) {
+				// Register before checking, so a concurrent flush either sees us or is seen by us
+				StreamRepository.this.waitingReaders++;
+				try {
+					while (true) {
+						final Snapshot snapshot = StreamRepository.this.committed;
+						if (this.cursor.remaining(snapshot, snapshot.getEnd()) > 0) {
+							return snapshot;
+						} else if (StreamRepository.this.closed) {
+							return null;
+						}
+
+						if (this.timeoutNanos > 0) {
+							final long remaining = deadline - System.nanoTime();
+							if (remaining <= 0) {
+								throw new InterruptedIOException("Read timed out waiting for a commit !");
+							}
+							TimeUnit.NANOSECONDS.timedWait(signal, remaining);
+						} else {
+							signal.wait();
+						}
+					}
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for a commit !");
+				} finally {
+					StreamRepository.this.waitingReaders--;
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Position of the shared InputStream. Immutable : its identity is the stamp validating the optimistic reads.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private static final class CursorStamp {
+
+		private final long position;
+
+		private CursorStamp(final long position) {
+			this.position = position;
+		}
+
+	}
+
+	/**
+	 * Shared InputStream, read optimistically : a read copies the bytes without lock, then publish its new position
+	 * only if the stamp was not replaced meanwhile by a commit, a reset or a recycling of chunks. Else it is retried.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private class InputStreamRepository extends InputStream {
+
+		private final AtomicReference<CursorStamp> stamp = new AtomicReference<CursorStamp>(new CursorStamp(0));
+
+		/** Each thread reads with its own cursor, caching its own segment and inflated block. */
+		private final ThreadLocal<Cursor> cursors = new ThreadLocal<Cursor>() {
+
+			@Override
+			protected Cursor initialValue() {
+				return new Cursor(0);
 			}
+		};
+
+		@Override
+		public int read() {
+			final Cursor cursor = this.cursors.get();
+			final int read = this.read(cursor.single, 0, 1);
+			return read < 1 ? -1 : cursor.single[0] & 0xff;
 		}
 
 		@Override
 		public int read(final byte[] b, final int off, final int len) {
-			synchronized (StreamRepository.this.lock) {
-				return super.read(b, off, len);
+			final Cursor cursor = this.cursors.get();
+			while (true) {
+				final CursorStamp current = this.stamp.get();
+				final Snapshot snapshot = StreamRepository.this.committed;
+				cursor.position = current.position;
+
+				final int read = cursor.read(snapshot, snapshot.getEnd(), b, off, len);
+				if (read <= 0 && cursor.position == current.position) {
+					// Nothing read : nothing to validate
+					return read;
+				}
+				if (this.stamp.compareAndSet(current, new CursorStamp(cursor.position))) {
+					if (read > 0 && StreamRepository.this.metrics != null) {
+						StreamRepository.this.metrics.bytesRead(read);
+					}
+					return read;
+				}
 			}
 		}
 
 		@Override
-		public int read(final byte[] b) throws IOException {
-			synchronized (StreamRepository.this.lock) {
-				return super.read(b);
+		public long skip(final long n) {
+			final Cursor cursor = this.cursors.get();
+			while (true) {
+				final CursorStamp current = this.stamp.get();
+				final Snapshot snapshot = StreamRepository.this.committed;
+				cursor.position = current.position;
+
+				final long skipped = cursor.skip(snapshot, snapshot.getEnd(), n);
+				if (skipped == 0 && cursor.position == current.position
+						|| this.stamp.compareAndSet(current, new CursorStamp(cursor.position))) {
+					return skipped;
+				}
 			}
 		}
 
+		@Override
+		public int available() {
+			final Snapshot snapshot = StreamRepository.this.committed;
+			final long position = Math.max(this.stamp.get().position, snapshot.start);
+			return (int) Math.min(Integer.MAX_VALUE, snapshot.getEnd() - position);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public void mark(final int readAheadLimit) {
+			// The reset clear the repository
+		}
+
 		@Override
 		public void reset() {
 			synchronized (StreamRepository.this.lock) {
-				super.reset();
-				this.pos = 0;
-				this.count = 0;
-				StreamRepository.this.index = 0;
+				StreamRepository.this.committed = StreamRepository.this.committed.truncate(StreamRepository.this
+						.getVersion());
+				StreamRepository.this.releaseChunks(false);
+				this.moveCursorToBegining();
 			}
 		}
 
@@ -117,25 +1127,97 @@ public class StreamRepository {
 			// Nothing to close
 		}
 
-		protected void addCount(final int count) {
-			synchronized (StreamRepository.this.lock) {
-				this.count = this.count + count;
-			}
+		protected void moveCursorToBegining() {
+			this.stamp.getAndSet(new CursorStamp(StreamRepository.this.committed.start));
 		}
 
-		protected void moveCursorToBegining() {
-			this.pos = 0;
+		/**
+		 * Replace the stamp without moving the cursor, so the reads in progress are retried. The atomic read of the
+		 * stamp orders the reads validated before it with the writes following the invalidation.
+		 */
+		protected void invalidate() {
+			CursorStamp current;
+			do {
+				current = this.stamp.get();
+			} while (!this.stamp.compareAndSet(current, new CursorStamp(current.position)));
 		}
 
 	}
 
-	private class OutputStreamRepository extends ByteArrayOutputStream {
+	/**
+	 * Array the content is written in.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private static final class Chunk {
 
-		/**
-		 * @param buf
-		 */
-		public OutputStreamRepository() {
-			super(StreamRepository.this.bufferSize);
+		private final byte[] data;
+
+		/** End position of the content committed in the chunk, max value while some content is not committed. */
+		private long end = Long.MAX_VALUE;
+
+		private Chunk(final byte[] data) {
+			this.data = data;
+		}
+
+	}
+
+	private class OutputStreamRepository extends OutputStream {
+
+		/** Chunk currently written, null before the first write. */
+		private Chunk chunk;
+
+		/** Next position to write in the chunk. */
+		private int chunkPosition = 0;
+
+		/** Position of the first not committed byte in the chunk. */
+		private int committedPosition = 0;
+
+		/** Not committed segments of previous chunks, with a dummy offset. */
+		private final List<Segment> pending = new ArrayList<Segment>();
+
+		/** Chunks of the pending segments. */
+		private final List<Chunk> pendingChunks = new ArrayList<Chunk>();
+
+		private final List<Segment> commitSegments = new ArrayList<Segment>();
+
+		/** Full chunks committed by the last flush, and their start position. */
+		private final List<Chunk> fullChunks = new ArrayList<Chunk>();
+
+		private final List<Long> fullChunkOffsets = new ArrayList<Long>();
+
+		private Deflater deflater;
+
+		private byte[] deflated;
+
+		private final byte[] single = new byte[1];
+
+		@Override
+		public synchronized void write(final int b) {
+			this.single[0] = (byte) b;
+			this.write(this.single, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(final byte[] b, int off, int len) {
+			if (off < 0 || len < 0 || len > b.length - off) {
+				throw new IndexOutOfBoundsException();
+			}
+			if (StreamRepository.this.metrics != null) {
+				StreamRepository.this.metrics.bytesWritten(len);
+			}
+
+			while (len > 0) {
+				if (this.chunk == null || this.chunkPosition == this.chunk.data.length) {
+					this.nextChunk();
+				}
+				final int length = Math.min(len, this.chunk.data.length - this.chunkPosition);
+				System.arraycopy(b, off, this.chunk.data, this.chunkPosition, length);
+				this.chunkPosition += length;
+				off += length;
+				len -= length;
+			}
 		}
 
 		@Override
@@ -144,21 +1226,132 @@ public class StreamRepository {
 		}
 
 		@Override
-		public void flush() throws IOException {
+		public synchronized void flush() throws IOException {
+			final IStreamRepositoryMetrics metrics = StreamRepository.this.metrics;
+			final long flushStart = metrics != null ? System.nanoTime() : 0;
+			final long committedBytes;
+
 			synchronized (StreamRepository.this.lock) {
-				for (int k = 0; k < this.count; k++) {
-					StreamRepository.this.buffer[k + StreamRepository.this.index] = this.buf[k];
+				if (metrics != null) {
+					metrics.lockWaited(System.nanoTime() - flushStart);
+				}
+				if (StreamRepository.this.closed) {
+					throw new IOException("Repository closed !");
+				}
+
+				final Snapshot snapshot = StreamRepository.this.committed;
+				long offset = snapshot.getEnd();
+				for (int k = 0; k < this.pending.size(); k++) {
+					final Segment segment = this.pending.get(k);
+					this.commitSegments.add(new Segment(offset, segment.data, segment.dataOffset, segment.length));
+					if (StreamRepository.this.compression) {
+						this.fullChunks.add(this.pendingChunks.get(k));
+						this.fullChunkOffsets.add(offset - segment.dataOffset);
+					}
+					offset += segment.length;
+					this.pendingChunks.get(k).end = offset;
+				}
+				if (this.chunkPosition > this.committedPosition) {
+					this.commitSegments.add(new Segment(offset, this.chunk.data, this.committedPosition,
+							this.chunkPosition - this.committedPosition));
+					offset += this.chunkPosition - this.committedPosition;
+					this.committedPosition = this.chunkPosition;
+				}
+				if (this.chunk != null) {
+					this.chunk.end = offset;
+					if (StreamRepository.this.compression && this.chunkPosition == this.chunk.data.length) {
+						this.fullChunks.add(this.chunk);
+						this.fullChunkOffsets.add(offset - this.chunk.data.length);
+					}
 				}
 
-				StreamRepository.this.index = StreamRepository.this.index + this.count;
-				StreamRepository.this.inputStreamRepo.addCount(this.count);
+				StreamRepository.this.committed = snapshot.append(this.commitSegments);
+				StreamRepository.this.uncompactedSegments += this.commitSegments.size();
+				this.commitSegments.clear();
+				this.pending.clear();
+				this.pendingChunks.clear();
+
 				StreamRepository.this.inputStreamRepo.moveCursorToBegining();
-				this.count = 0;
+				StreamRepository.this.reportOccupancy();
+				committedBytes = offset - snapshot.getEnd();
+			}
+
+			StreamRepository.this.signalCommit();
 
-				if (StreamRepository.LOG.isInfoEnabled()) {
-					StreamRepository.LOG.info("Flushed: [{}]", new String(StreamRepository.this.buffer).trim());
+			if (metrics != null) {
+				metrics.committed(committedBytes, System.nanoTime() - flushStart);
+			}
+			StreamRepository.LOG.debug("Flushed {} bytes.", committedBytes);
+
+			// Compress outside of the lock
+			for (int k = 0; k < this.fullChunks.size(); k++) {
+				final Chunk chunk = this.fullChunks.get(k);
+				final Segment block = this.compress(this.fullChunkOffsets.get(k), chunk.data);
+				if (block != null) {
+					StreamRepository.this.replaceByBlock(chunk, block);
 				}
 			}
+			this.fullChunks.clear();
+			this.fullChunkOffsets.clear();
+		}
+
+		/**
+		 * Free the native resources of the compression.
+		 */
+		protected synchronized void endCompression() {
+			if (this.deflater != null) {
+				this.deflater.end();
+				this.deflater = null;
+				this.deflated = null;
+			}
+		}
+
+		/**
+		 * @return the compressed segment of a whole chunk, null if the compression is not worth it
+		 */
+		private Segment compress(final long offset, final byte[] data) {
+			if (this.deflater == null) {
+				this.deflater = new Deflater(Deflater.BEST_SPEED);
+				this.deflated = new byte[data.length];
+			}
+
+			this.deflater.reset();
+			this.deflater.setInput(data, 0, data.length);
+			this.deflater.finish();
+			final int maxLength = data.length - data.length / StreamRepository.MIN_COMPRESSION_GAIN;
+			int deflatedLength = 0;
+			while (!this.deflater.finished() && deflatedLength < maxLength) {
+				deflatedLength += this.deflater.deflate(this.deflated, deflatedLength, maxLength - deflatedLength);
+			}
+			if (!this.deflater.finished()) {
+				return null;
+			}
+
+			return new Segment(offset, Arrays.copyOf(this.deflated, deflatedLength), 0, data.length, deflatedLength);
+		}
+
+		/**
+		 * Forget the content not committed and the current chunk. Called under the lock.
+		 */
+		protected synchronized void discard() {
+			this.chunk = null;
+			this.chunkPosition = 0;
+			this.committedPosition = 0;
+			this.pending.clear();
+			this.pendingChunks.clear();
+		}
+
+		private void nextChunk() {
+			if (this.chunk != null && this.chunkPosition > this.committedPosition) {
+				this.pending.add(new Segment(0, this.chunk.data, this.committedPosition, this.chunkPosition
+						- this.committedPosition));
+				this.pendingChunks.add(this.chunk);
+				this.chunk.end = Long.MAX_VALUE;
+			}
+
+			this.chunk = StreamRepository.this.acquireChunk();
+			this.chunkPosition = 0;
+			this.committedPosition = 0;
 		}
 	}
 
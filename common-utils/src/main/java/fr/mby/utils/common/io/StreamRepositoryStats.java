@@ -0,0 +1,232 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.mby.utils.common.io;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of a StreamRepository kept in memory : counters, gauges of the last occupancy reported, and histograms of the
+ * commit latency and lock wait. Can be exposed through JMX.
+ * 
+ * @author Maxime Bossard - 2013
+ * 
+ */
+public class StreamRepositoryStats implements IStreamRepositoryMetrics, StreamRepositoryStatsMBean {
+
+	/** Domain of the registered MBeans. */
+	public static final String JMX_DOMAIN = "fr.mby.utils.common.io";
+
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	private final AtomicLong bytesRead = new AtomicLong();
+
+	private final Histogram commitLatency = new Histogram();
+
+	private final Histogram lockWait = new Histogram();
+
+	private volatile long bufferedBytes = 0;
+
+	private volatile int chunkCount = 0;
+
+	@Override
+	public void bytesWritten(final long count) {
+		this.bytesWritten.addAndGet(count);
+	}
+
+	@Override
+	public void bytesRead(final long count) {
+		this.bytesRead.addAndGet(count);
+	}
+
+	@Override
+	public void committed(final long bytes, final long latencyNanos) {
+		this.commitLatency.record(latencyNanos);
+	}
+
+	@Override
+	public void lockWaited(final long nanos) {
+		this.lockWait.record(nanos);
+	}
+
+	@Override
+	public void bufferOccupancy(final long bufferedBytes, final int chunkCount) {
+		this.bufferedBytes = bufferedBytes;
+		this.chunkCount = chunkCount;
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return this.bytesWritten.get();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return this.bytesRead.get();
+	}
+
+	@Override
+	public long getCommitCount() {
+		return this.commitLatency.getCount();
+	}
+
+	@Override
+	public long getCommitLatencyMeanNanos() {
+		return this.commitLatency.getMean();
+	}
+
+	@Override
+	public long getCommitLatency99thNanos() {
+		return this.commitLatency.getPercentile(0.99);
+	}
+
+	@Override
+	public long getCommitLatencyMaxNanos() {
+		return this.commitLatency.getMax();
+	}
+
+	@Override
+	public long getLockWaitTotalNanos() {
+		return this.lockWait.getSum();
+	}
+
+	@Override
+	public long getLockWait99thNanos() {
+		return this.lockWait.getPercentile(0.99);
+	}
+
+	@Override
+	public long getLockWaitMaxNanos() {
+		return this.lockWait.getMax();
+	}
+
+	@Override
+	public long getBufferedBytes() {
+		return this.bufferedBytes;
+	}
+
+	@Override
+	public int getChunkCount() {
+		return this.chunkCount;
+	}
+
+	@Override
+	public void reset() {
+		this.bytesWritten.set(0);
+		this.bytesRead.set(0);
+		this.commitLatency.reset();
+		this.lockWait.reset();
+	}
+
+	/**
+	 * Register the stats in the platform MBean server.
+	 * 
+	 * @param name
+	 *            the name of the repository, unique in the JVM
+	 * @return the name the MBean is registered with
+	 * @throws JMException
+	 *             if the registration failed
+	 */
+	public ObjectName register(final String name) throws JMException {
+		final ObjectName objectName = new ObjectName(StreamRepositoryStats.JMX_DOMAIN, "name", ObjectName.quote(name));
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(this, objectName);
+		return objectName;
+	}
+
+	/**
+	 * Histogram of durations by power of two buckets : cheap to record, with percentiles accurate to a factor 2.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private static final class Histogram {
+
+		/** Bucket k counts the values of k significant bits. */
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong sum = new AtomicLong();
+
+		private final AtomicLong max = new AtomicLong();
+
+		private void record(final long value) {
+			final long positive = Math.max(value, 0);
+			this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(positive) - (positive == 0 ? 0 : 1));
+			this.count.incrementAndGet();
+			this.sum.addAndGet(positive);
+
+			long currentMax = this.max.get();
+			while (positive > currentMax && !this.max.compareAndSet(currentMax, positive)) {
+				currentMax = this.max.get();
+			}
+		}
+
+		private long getCount() {
+			return this.count.get();
+		}
+
+		private long getSum() {
+			return this.sum.get();
+		}
+
+		private long getMax() {
+			return this.max.get();
+		}
+
+		private long getMean() {
+			final long count = this.count.get();
+			return count == 0 ? 0 : this.sum.get() / count;
+		}
+
+		/**
+		 * @return the upper bound of the bucket holding the percentile, bounded by the max
+		 */
+		private long getPercentile(final double percentile) {
+			long total = 0;
+			for (int k = 0; k < 64; k++) {
+				total += this.buckets.get(k);
+			}
+			final long rank = (long) Math.ceil(total * percentile);
+			long seen = 0;
+			for (int k = 0; k < 64; k++) {
+				seen += this.buckets.get(k);
+				if (seen >= rank && seen > 0) {
+					return Math.min(k >= 62 ? Long.MAX_VALUE : (2L << k) - 1, this.max.get());
+				}
+			}
+			return 0;
+		}
+
+		private void reset() {
+			for (int k = 0; k < 64; k++) {
+				this.buckets.set(k, 0);
+			}
+			this.count.set(0);
+			this.sum.set(0);
+			this.max.set(0);
+		}
+
+	}
+
+}
@@ -0,0 +1,389 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mby.utils.common.prefs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.util.Assert;
+
+/**
+ * Crash safe log of records in files : a checkpoint file holding the last image, and a journal holding the deltas
+ * appended since.
+ * 
+ * The deltas are appended to the journal, and made durable by sync(). A sync covers all the records appended before
+ * it, so concurrent flushes share one fsync. An image is written in a new checkpoint file, renamed atomically over the
+ * previous one, then a new empty journal is renamed over the previous one. Both files start with the generation of the
+ * checkpoint : a journal of an older generation is ignored, as its content is in the checkpoint.
+ * 
+ * At opening, a record left incomplete or corrupted at the end of the journal by a crash is truncated.
+ * 
+ * A reader follows the records appended by one writer process, including its checkpoints.
+ * 
+ * @author Maxime Bossard - 2013
+ * 
+ */
+class FileRecordLog extends RecordLog {
+
+	/** Logger. */
+	private static final Logger LOG = LogManager.getLogger(FileRecordLog.class);
+
+	private static final int MAGIC = 0x53505246;
+
+	/** Size of a file header : the magic number and the generation. */
+	private static final int FILE_HEADER_SIZE = 12;
+
+	static final String JOURNAL_SUFFIX = ".journal";
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final Path checkpointPath;
+
+	private final Path journalPath;
+
+	private FileChannel journal;
+
+	/** Generation of the checkpoint. */
+	private long generation;
+
+	/** Position of the end of the journal. */
+	private long writePosition;
+
+	/** Position in the journal of the next record to read. */
+	private long readPosition;
+
+	private boolean checkpointRead = false;
+
+	private final Object syncLock = new Object();
+
+	/** Number of bytes appended to the journal since the opening. */
+	private volatile long appendedBytes = 0;
+
+	/** Number of bytes appended and made durable. Guarded by the sync lock. */
+	private long syncedBytes = 0;
+
+	/**
+	 * Open the log, recovering it after a crash if needed.
+	 * 
+	 * @param file
+	 *            the checkpoint file, the journal is next to it
+	 */
+	FileRecordLog(final File file) throws IOException {
+		Assert.notNull(file, "No File provided !");
+
+		this.checkpointPath = file.toPath();
+		this.journalPath = new File(file.getPath() + FileRecordLog.JOURNAL_SUFFIX).toPath();
+
+		this.generation = 0;
+		if (Files.exists(this.checkpointPath)) {
+			final FileChannel checkpoint = FileChannel.open(this.checkpointPath, StandardOpenOption.READ);
+			try {
+				this.generation = FileRecordLog.readGeneration(checkpoint);
+			} finally {
+				checkpoint.close();
+			}
+			if (this.generation < 0) {
+				throw new IOException("Corrupted preferences checkpoint: " + file);
+			}
+		}
+
+		if (Files.exists(this.journalPath)) {
+			this.journal = FileChannel.open(this.journalPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (FileRecordLog.readGeneration(this.journal) == this.generation) {
+				this.writePosition = this.recoverJournal();
+			} else {
+				// Older journal, already in the checkpoint
+				this.journal.close();
+				this.createJournal();
+			}
+		} else {
+			this.createJournal();
+		}
+		this.readPosition = FileRecordLog.FILE_HEADER_SIZE;
+	}
+
+	@Override
+	synchronized void append(final byte[] record, final int length) throws IOException {
+		if (record[0] == RecordLog.IMAGE_RECORD) {
+			this.checkpoint(record, length);
+			return;
+		}
+
+		final boolean allRead = this.readPosition == this.writePosition;
+		FileRecordLog.writeFully(this.journal, ByteBuffer.wrap(record, 0, length), this.writePosition);
+		this.writePosition += length;
+		if (allRead) {
+			// The writer does not need to read its own records
+			this.readPosition = this.writePosition;
+		}
+		this.appendedBytes += length;
+	}
+
+	@Override
+	void sync() throws IOException {
+		final long target = this.appendedBytes;
+		synchronized (this.syncLock) {
+			if (this.syncedBytes >= target) {
+				// Made durable by a concurrent sync
+				return;
+			}
+
+			// Cover all the records appended until now
+			final long appended = this.appendedBytes;
+			this.journal.force(false);
+			this.syncedBytes = appended;
+		}
+	}
+
+	@Override
+	synchronized void read(final List<Record> records) throws IOException {
+		this.followCheckpoint();
+		if (!this.checkpointRead) {
+			this.checkpointRead = true;
+			if (Files.exists(this.checkpointPath)) {
+				final FileChannel checkpoint = FileChannel.open(this.checkpointPath, StandardOpenOption.READ);
+				try {
+					final Record image = FileRecordLog.readRecord(checkpoint, FileRecordLog.FILE_HEADER_SIZE,
+							checkpoint.size());
+					if (image == null) {
+						throw new IOException("Corrupted preferences checkpoint: " + this.checkpointPath);
+					}
+					records.add(image);
+				} finally {
+					checkpoint.close();
+				}
+			}
+		}
+
+		final long size = this.journal.size();
+		Record record;
+		while ((record = FileRecordLog.readRecord(this.journal, this.readPosition, size)) != null) {
+			records.add(record);
+			this.readPosition += RecordLog.HEADER_SIZE + record.payload.length;
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		synchronized (this.syncLock) {
+			this.journal.force(false);
+			this.syncedBytes = this.appendedBytes;
+			this.journal.close();
+		}
+	}
+
+	/**
+	 * Follow a checkpoint written by another process : its image and the new journal are read from the start.
+	 */
+	private void followCheckpoint() throws IOException {
+		if (!Files.exists(this.checkpointPath)) {
+			return;
+		}
+		final long current;
+		final FileChannel checkpoint = FileChannel.open(this.checkpointPath, StandardOpenOption.READ);
+		try {
+			current = FileRecordLog.readGeneration(checkpoint);
+		} finally {
+			checkpoint.close();
+		}
+		if (current <= this.generation) {
+			return;
+		}
+
+		final FileChannel followed = FileChannel.open(this.journalPath, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		if (FileRecordLog.readGeneration(followed) != current) {
+			// The new journal is not renamed yet, followed by a next read
+			followed.close();
+			return;
+		}
+		synchronized (this.syncLock) {
+			this.journal.close();
+			this.journal = followed;
+			this.syncedBytes = this.appendedBytes;
+		}
+		this.generation = current;
+		this.writePosition = this.journal.size();
+		this.readPosition = FileRecordLog.FILE_HEADER_SIZE;
+		this.checkpointRead = false;
+	}
+
+	/**
+	 * Write a new checkpoint holding an image, then start a new journal.
+	 */
+	private void checkpoint(final byte[] record, final int length) throws IOException {
+		final long nextGeneration = this.generation + 1;
+
+		final Path checkpointTemp = this.tempPath(this.checkpointPath);
+		final FileChannel checkpoint = FileChannel.open(checkpointTemp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			FileRecordLog.writeFully(checkpoint, FileRecordLog.fileHeader(nextGeneration), 0);
+			FileRecordLog.writeFully(checkpoint, ByteBuffer.wrap(record, 0, length), FileRecordLog.FILE_HEADER_SIZE);
+			checkpoint.force(true);
+		} finally {
+			checkpoint.close();
+		}
+		Files.move(checkpointTemp, this.checkpointPath, StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		this.syncDirectory();
+		this.generation = nextGeneration;
+
+		synchronized (this.syncLock) {
+			// All the previous records are in the checkpoint
+			this.journal.close();
+			this.createJournal();
+			this.syncedBytes = this.appendedBytes;
+		}
+		this.readPosition = this.writePosition;
+	}
+
+	/**
+	 * Replace the journal by an empty one of the current generation.
+	 */
+	private void createJournal() throws IOException {
+		final Path journalTemp = this.tempPath(this.journalPath);
+		final FileChannel created = FileChannel.open(journalTemp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			FileRecordLog.writeFully(created, FileRecordLog.fileHeader(this.generation), 0);
+			created.force(true);
+		} finally {
+			created.close();
+		}
+		Files.move(journalTemp, this.journalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		this.syncDirectory();
+
+		this.journal = FileChannel.open(this.journalPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.writePosition = FileRecordLog.FILE_HEADER_SIZE;
+	}
+
+	/**
+	 * Truncate the journal after its last valid record.
+	 * 
+	 * @return the end of the last valid record
+	 */
+	private long recoverJournal() throws IOException {
+		final long size = this.journal.size();
+		long position = FileRecordLog.FILE_HEADER_SIZE;
+		Record record;
+		while ((record = FileRecordLog.readRecord(this.journal, position, size)) != null) {
+			position += RecordLog.HEADER_SIZE + record.payload.length;
+		}
+
+		if (position < size) {
+			FileRecordLog.LOG.warn("Truncating {} bytes of incomplete records at the end of {} !", size - position,
+					this.journalPath);
+			this.journal.truncate(position);
+			this.journal.force(true);
+		}
+		return position;
+	}
+
+	/**
+	 * Make the renames durable. Not supported on every platform.
+	 */
+	private void syncDirectory() {
+		final Path directory = this.checkpointPath.toAbsolutePath().getParent();
+		try {
+			final FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (final IOException e) {
+			FileRecordLog.LOG.debug("Unable to sync directory {}", directory);
+		}
+	}
+
+	private Path tempPath(final Path path) {
+		return path.resolveSibling(path.getFileName() + FileRecordLog.TEMP_SUFFIX);
+	}
+
+	/**
+	 * @return the generation in the header of a file, -1 if the header is invalid
+	 */
+	private static long readGeneration(final FileChannel channel) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(FileRecordLog.FILE_HEADER_SIZE);
+		if (!FileRecordLog.readFully(channel, header, 0) || header.getInt(0) != FileRecordLog.MAGIC) {
+			return -1;
+		}
+		return header.getLong(4);
+	}
+
+	/**
+	 * @return the complete and valid record at a position, null if none
+	 */
+	private static Record readRecord(final FileChannel channel, final long position, final long size)
+			throws IOException {
+		if (position + RecordLog.HEADER_SIZE > size) {
+			return null;
+		}
+		final ByteBuffer header = ByteBuffer.allocate(RecordLog.HEADER_SIZE);
+		if (!FileRecordLog.readFully(channel, header, position)) {
+			return null;
+		}
+		final int length = header.getInt(1);
+		if (length < 0 || position + RecordLog.HEADER_SIZE + length > size) {
+			return null;
+		}
+
+		final byte[] payload = new byte[length];
+		if (!FileRecordLog.readFully(channel, ByteBuffer.wrap(payload), position + RecordLog.HEADER_SIZE)
+				|| header.getInt(5) != RecordLog.checksum(payload, 0, length)) {
+			return null;
+		}
+		return new Record(header.get(0), payload);
+	}
+
+	private static ByteBuffer fileHeader(final long generation) {
+		final ByteBuffer header = ByteBuffer.allocate(FileRecordLog.FILE_HEADER_SIZE);
+		header.putInt(FileRecordLog.MAGIC);
+		header.putLong(generation);
+		header.flip();
+		return header;
+	}
+
+	private static boolean readFully(final FileChannel channel, final ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer, position);
+			if (read < 0) {
+				return false;
+			}
+			position += read;
+		}
+		return true;
+	}
+
+	private static void writeFully(final FileChannel channel, final ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+}
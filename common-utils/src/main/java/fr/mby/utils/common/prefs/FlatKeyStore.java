@@ -0,0 +1,527 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.mby.utils.common.prefs;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Store of the keys of all the nodes of a preferences tree in one open addressing table, instead of one map by node.
+ * 
+ * An entry is a slot in parallel arrays : the node id, the key and the value. The key names are interned, so a key
+ * present in many nodes is stored once, and dropped with its last entry. The slots of a node are chained, to list its
+ * keys without scanning the table. A removed entry leaves a tombstone, reused by the next insertions and dropped when
+ * the table is resized.
+ * 
+ * Each node sees its keys through a Map view. The views are thread safe. The view of a removed node is released : its
+ * keys are freed and its id is given to the next node created.
+ * 
+ * @author Maxime Bossard - 2013
+ * 
+ */
+final class FlatKeyStore {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final int NO_SLOT = -1;
+
+	/** Node id of a released view. */
+	private static final int NO_NODE = -1;
+
+	/** Key of a tombstone, not to keep the removed key reachable. */
+	private static final String TOMBSTONE = new String();
+
+	private final Lock readLock;
+
+	private final Lock writeLock;
+
+	/** Node of the entry of each slot. */
+	private int[] nodes;
+
+	/** Key of the entry of each slot, TOMBSTONE for a tombstone, null if the slot was never used. */
+	private String[] keys;
+
+	/** Value of the entry of each slot, null for a tombstone. */
+	private String[] values;
+
+	/** Next slot of the same node, NO_SLOT at the end of the chain. */
+	private int[] nextSlots;
+
+	/** First slot of each node chain, by node id. */
+	private int[] nodeHeads = new int[FlatKeyStore.INITIAL_CAPACITY];
+
+	/** Number of keys of each node, by node id. */
+	private int[] nodeSizes = new int[FlatKeyStore.INITIAL_CAPACITY];
+
+	private int nodeCount = 0;
+
+	/** Ids of the released nodes, reused before new ones. */
+	private int[] freeNodes = new int[FlatKeyStore.INITIAL_CAPACITY];
+
+	private int freeNodeCount = 0;
+
+	/** Number of live entries. */
+	private int size = 0;
+
+	/** Number of used slots : live entries and tombstones. */
+	private int usedSlots = 0;
+
+	/** Interned key names, with the number of entries using them. */
+	private final Map<String, KeyName> keyNames = new HashMap<String, KeyName>();
+
+	FlatKeyStore() {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		this.readLock = lock.readLock();
+		this.writeLock = lock.writeLock();
+		this.allocate(FlatKeyStore.INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @return a Map view on the keys of a new node
+	 */
+	Map<String, String> newNodeMap() {
+		this.writeLock.lock();
+		try {
+			final int node;
+			if (this.freeNodeCount > 0) {
+				node = this.freeNodes[--this.freeNodeCount];
+			} else {
+				node = this.nodeCount++;
+				if (node == this.nodeHeads.length) {
+					this.nodeHeads = Arrays.copyOf(this.nodeHeads, 2 * node);
+					this.nodeSizes = Arrays.copyOf(this.nodeSizes, 2 * node);
+				}
+			}
+			this.nodeHeads[node] = FlatKeyStore.NO_SLOT;
+			this.nodeSizes[node] = 0;
+			return new NodeMap(node);
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Free the keys of a removed node and its id. The view released is then empty and ignores the writes, as the
+	 * writes racing the removal of the node.
+	 */
+	void release(final Map<String, String> nodeMap) {
+		this.writeLock.lock();
+		try {
+			final NodeMap view = (NodeMap) nodeMap;
+			final int node = view.node;
+			if (node == FlatKeyStore.NO_NODE) {
+				return;
+			}
+			this.clear(view);
+			view.node = FlatKeyStore.NO_NODE;
+			if (this.freeNodeCount == this.freeNodes.length) {
+				this.freeNodes = Arrays.copyOf(this.freeNodes, 2 * this.freeNodeCount);
+			}
+			this.freeNodes[this.freeNodeCount++] = node;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of nodes created and not released
+	 */
+	int nodeCount() {
+		this.readLock.lock();
+		try {
+			return this.nodeCount - this.freeNodeCount;
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of distinct key names stored
+	 */
+	int keyNameCount() {
+		this.readLock.lock();
+		try {
+			return this.keyNames.size();
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of keys of all the nodes
+	 */
+	int size() {
+		this.readLock.lock();
+		try {
+			return this.size;
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	private String get(final NodeMap view, final String key) {
+		this.readLock.lock();
+		try {
+			final int node = view.node;
+			if (node == FlatKeyStore.NO_NODE) {
+				return null;
+			}
+			final int slot = this.find(node, key);
+			return slot == FlatKeyStore.NO_SLOT ? null : this.values[slot];
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	private String put(final NodeMap view, final String key, final String value) {
+		if (key == null || value == null) {
+			throw new NullPointerException();
+		}
+
+		this.writeLock.lock();
+		try {
+			final int node = view.node;
+			if (node == FlatKeyStore.NO_NODE) {
+				return null;
+			}
+			final int found = this.find(node, key);
+			if (found != FlatKeyStore.NO_SLOT) {
+				final String previous = this.values[found];
+				this.values[found] = value;
+				return previous;
+			}
+
+			if (4 * (this.usedSlots + 1) > 3 * this.keys.length) {
+				this.resize();
+			}
+
+			final int slot = this.freeSlot(node, key);
+			if (this.keys[slot] == null) {
+				this.usedSlots++;
+			}
+			this.insert(slot, node, this.intern(key), value);
+			this.size++;
+			return null;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	private String remove(final NodeMap view, final String key) {
+		this.writeLock.lock();
+		try {
+			final int node = view.node;
+			final int slot = node == FlatKeyStore.NO_NODE ? FlatKeyStore.NO_SLOT : this.find(node, key);
+			if (slot == FlatKeyStore.NO_SLOT) {
+				return null;
+			}
+
+			final String previous = this.values[slot];
+			this.unlink(node, slot);
+			this.free(slot);
+			return previous;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	private int nodeSize(final NodeMap view) {
+		this.readLock.lock();
+		try {
+			final int node = view.node;
+			return node == FlatKeyStore.NO_NODE ? 0 : this.nodeSizes[node];
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	/**
+	 * @return a copy of the entries of a node
+	 */
+	private List<Map.Entry<String, String>> entries(final NodeMap view) {
+		this.readLock.lock();
+		try {
+			final int node = view.node;
+			if (node == FlatKeyStore.NO_NODE) {
+				return new ArrayList<Map.Entry<String, String>>(0);
+			}
+			final List<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>(
+					this.nodeSizes[node]);
+			for (int slot = this.nodeHeads[node]; slot != FlatKeyStore.NO_SLOT; slot = this.nextSlots[slot]) {
+				entries.add(new AbstractMap.SimpleImmutableEntry<String, String>(this.keys[slot], this.values[slot]));
+			}
+			return entries;
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+
+	private void clear(final NodeMap view) {
+		this.writeLock.lock();
+		try {
+			final int node = view.node;
+			if (node == FlatKeyStore.NO_NODE) {
+				return;
+			}
+			int slot = this.nodeHeads[node];
+			while (slot != FlatKeyStore.NO_SLOT) {
+				this.free(slot);
+				slot = this.nextSlots[slot];
+			}
+			this.nodeHeads[node] = FlatKeyStore.NO_SLOT;
+			this.nodeSizes[node] = 0;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the slot of a live entry, NO_SLOT if missing
+	 */
+	private int find(final int node, final String key) {
+		final int mask = this.keys.length - 1;
+		for (int slot = FlatKeyStore.hash(node, key) & mask;; slot = slot + 1 & mask) {
+			final String slotKey = this.keys[slot];
+			if (slotKey == null) {
+				return FlatKeyStore.NO_SLOT;
+			}
+			if (this.nodes[slot] == node && this.values[slot] != null && slotKey.equals(key)) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * @return the first tombstone or empty slot of the probe sequence of an entry
+	 */
+	private int freeSlot(final int node, final String key) {
+		final int mask = this.keys.length - 1;
+		int slot = FlatKeyStore.hash(node, key) & mask;
+		while (this.keys[slot] != null && this.values[slot] != null) {
+			slot = slot + 1 & mask;
+		}
+		return slot;
+	}
+
+	private void insert(final int slot, final int node, final String key, final String value) {
+		this.nodes[slot] = node;
+		this.keys[slot] = key;
+		this.values[slot] = value;
+		this.nextSlots[slot] = this.nodeHeads[node];
+		this.nodeHeads[node] = slot;
+		this.nodeSizes[node]++;
+	}
+
+	/**
+	 * Make a slot a tombstone, so the probe sequences are not broken, and release its key name.
+	 */
+	private void free(final int slot) {
+		this.release(this.keys[slot]);
+		this.keys[slot] = FlatKeyStore.TOMBSTONE;
+		this.values[slot] = null;
+		this.size--;
+	}
+
+	private void unlink(final int node, final int slot) {
+		if (this.nodeHeads[node] == slot) {
+			this.nodeHeads[node] = this.nextSlots[slot];
+		} else {
+			int previous = this.nodeHeads[node];
+			while (this.nextSlots[previous] != slot) {
+				previous = this.nextSlots[previous];
+			}
+			this.nextSlots[previous] = this.nextSlots[slot];
+		}
+		this.nodeSizes[node]--;
+	}
+
+	/**
+	 * Rehash the live entries, dropping the tombstones, in a table sized for them.
+	 */
+	private void resize() {
+		final int[] oldNodes = this.nodes;
+		final String[] oldKeys = this.keys;
+		final String[] oldValues = this.values;
+
+		int capacity = FlatKeyStore.INITIAL_CAPACITY;
+		while (4 * (this.size + 1) > 3 * capacity / 2) {
+			capacity *= 2;
+		}
+		this.allocate(capacity);
+		Arrays.fill(this.nodeHeads, 0, this.nodeCount, FlatKeyStore.NO_SLOT);
+		Arrays.fill(this.nodeSizes, 0, this.nodeCount, 0);
+
+		for (int k = 0; k < oldKeys.length; k++) {
+			if (oldValues[k] != null) {
+				this.insert(this.freeSlot(oldNodes[k], oldKeys[k]), oldNodes[k], oldKeys[k], oldValues[k]);
+			}
+		}
+		this.usedSlots = this.size;
+	}
+
+	private void allocate(final int capacity) {
+		this.nodes = new int[capacity];
+		this.keys = new String[capacity];
+		this.values = new String[capacity];
+		this.nextSlots = new int[capacity];
+	}
+
+	/**
+	 * @return the interned key name, counted for one more entry
+	 */
+	private String intern(final String key) {
+		KeyName keyName = this.keyNames.get(key);
+		if (keyName == null) {
+			keyName = new KeyName(key);
+			this.keyNames.put(key, keyName);
+		}
+		keyName.entries++;
+		return keyName.name;
+	}
+
+	/**
+	 * Count one less entry of a key name, dropping it with its last entry.
+	 */
+	private void release(final String key) {
+		final KeyName keyName = this.keyNames.get(key);
+		if (--keyName.entries == 0) {
+			this.keyNames.remove(key);
+		}
+	}
+
+	private static int hash(final int node, final String key) {
+		final int hash = node * 0x9E3779B9 ^ key.hashCode();
+		return hash ^ hash >>> 16;
+	}
+
+	/**
+	 * Interned key name.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private static final class KeyName {
+
+		private final String name;
+
+		/** Number of live entries with this key. */
+		private int entries = 0;
+
+		private KeyName(final String name) {
+			this.name = name;
+		}
+
+	}
+
+	/**
+	 * Map view on the keys of one node.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private final class NodeMap extends AbstractMap<String, String> {
+
+		/** Id of the node, NO_NODE once released. Guarded by the store lock. */
+		private int node;
+
+		private NodeMap(final int node) {
+			this.node = node;
+		}
+
+		@Override
+		public String get(final Object key) {
+			return key instanceof String ? FlatKeyStore.this.get(this, (String) key) : null;
+		}
+
+		@Override
+		public boolean containsKey(final Object key) {
+			return this.get(key) != null;
+		}
+
+		@Override
+		public String put(final String key, final String value) {
+			return FlatKeyStore.this.put(this, key, value);
+		}
+
+		@Override
+		public String remove(final Object key) {
+			return key instanceof String ? FlatKeyStore.this.remove(this, (String) key) : null;
+		}
+
+		@Override
+		public int size() {
+			return FlatKeyStore.this.nodeSize(this);
+		}
+
+		@Override
+		public void clear() {
+			FlatKeyStore.this.clear(this);
+		}
+
+		/**
+		 * @return a copy of the entries, whose iterator removes from the store
+		 */
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			final List<Map.Entry<String, String>> entries = FlatKeyStore.this.entries(this);
+			return new AbstractSet<Map.Entry<String, String>>() {
+
+				@Override
+				public Iterator<Map.Entry<String, String>> iterator() {
+					final Iterator<Map.Entry<String, String>> iterator = entries.iterator();
+					return new Iterator<Map.Entry<String, String>>() {
+
+						private Map.Entry<String, String> current;
+
+						@Override
+						public boolean hasNext() {
+							return iterator.hasNext();
+						}
+
+						@Override
+						public Map.Entry<String, String> next() {
+							this.current = iterator.next();
+							return this.current;
+						}
+
+						@Override
+						public void remove() {
+							iterator.remove();
+							NodeMap.this.remove(this.current.getKey());
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return entries.size();
+				}
+			};
+		}
+
+	}
+
+}
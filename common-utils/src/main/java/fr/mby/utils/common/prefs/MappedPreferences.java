@@ -0,0 +1,142 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.mby.utils.common.prefs;
+
+import java.io.IOException;
+import java.util.prefs.AbstractPreferences;
+import java.util.prefs.BackingStoreException;
+
+import org.springframework.util.StringUtils;
+
+/**
+ * Preferences stored in a memory mapped file shared by the processes of a host. The keys are read directly in the
+ * mapped file : there is no copy to load nor to sync, and a change written by a process is seen at once by the others.
+ * 
+ * A node created by another process is found on access. A node removed by another process is no longer reported by
+ * nodeExists(), but stays in the cache of AbstractPreferences, without keys.
+ * 
+ * @author Maxime Bossard - 2013
+ * 
+ */
+public class MappedPreferences extends AbstractPreferences {
+
+	private final MappedStore store;
+
+	MappedPreferences(final MappedStore store) {
+		super(null, "");
+
+		this.store = store;
+	}
+
+	private MappedPreferences(final MappedPreferences parent, final String name) {
+		super(parent, name);
+
+		this.store = parent.store;
+	}
+
+	/**
+	 * @return the version of the store, changed by each write of any process. A cheap way to notice the changes.
+	 */
+	public long version() {
+		return this.store.version();
+	}
+
+	/**
+	 * Also checks the node in the mapped file, as it may have been removed by another process.
+	 */
+	@Override
+	public boolean nodeExists(final String pathName) throws BackingStoreException {
+		final boolean exists = super.nodeExists(pathName);
+		if (!exists || pathName.isEmpty()) {
+			return exists;
+		}
+
+		final String path;
+		if (pathName.startsWith("/")) {
+			path = pathName;
+		} else if (this.parent() == null) {
+			path = "/" + pathName;
+		} else {
+			path = this.absolutePath() + "/" + pathName;
+		}
+		return this.store.nodeExists(path);
+	}
+
+	@Override
+	protected void putSpi(final String key, final String value) {
+		try {
+			this.store.put(this.absolutePath(), key, value);
+		} catch (final IOException e) {
+			throw new IllegalStateException("Unable to write the mapped preferences !", e);
+		}
+	}
+
+	@Override
+	protected String getSpi(final String key) {
+		return this.store.get(this.absolutePath(), key);
+	}
+
+	@Override
+	protected void removeSpi(final String key) {
+		try {
+			this.store.remove(this.absolutePath(), key);
+		} catch (final IOException e) {
+			throw new IllegalStateException("Unable to write the mapped preferences !", e);
+		}
+	}
+
+	@Override
+	protected void removeNodeSpi() throws BackingStoreException {
+		try {
+			this.store.removeNode(this.absolutePath());
+		} catch (final IOException e) {
+			throw new BackingStoreException(e);
+		}
+	}
+
+	@Override
+	protected String[] keysSpi() throws BackingStoreException {
+		return StringUtils.toStringArray(this.store.keys(this.absolutePath()));
+	}
+
+	@Override
+	protected String[] childrenNamesSpi() throws BackingStoreException {
+		return StringUtils.toStringArray(this.store.childrenNames(this.absolutePath()));
+	}
+
+	@Override
+	protected AbstractPreferences childSpi(final String name) {
+		final MappedPreferences child = new MappedPreferences(this, name);
+		try {
+			child.newNode = this.store.addNode(child.absolutePath());
+		} catch (final IOException e) {
+			throw new IllegalStateException("Unable to write the mapped preferences !", e);
+		}
+		return child;
+	}
+
+	@Override
+	protected void syncSpi() throws BackingStoreException {
+		// The mapped file is always up to date
+	}
+
+	@Override
+	protected void flushSpi() throws BackingStoreException {
+		this.store.force();
+	}
+
+}
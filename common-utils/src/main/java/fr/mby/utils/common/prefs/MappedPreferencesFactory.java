@@ -0,0 +1,84 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.mby.utils.common.prefs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.prefs.Preferences;
+import java.util.prefs.PreferencesFactory;
+
+import org.springframework.util.Assert;
+
+/**
+ * Factory of MappedPreferences : preferences shared by the processes of a host through a memory mapped file. Every
+ * process building a factory on the same file reads and writes the same preferences.
+ * 
+ * @author Maxime Bossard - 2013
+ * 
+ */
+public class MappedPreferencesFactory implements PreferencesFactory, Closeable {
+
+	private static final int DEFAULT_INITIAL_CAPACITY = 1024 * 1024;
+
+	private final MappedStore store;
+
+	private final MappedPreferences instance;
+
+	/**
+	 * @param file
+	 *            the file shared by the processes, created if it does not exist
+	 * @throws IOException
+	 *             if the file cannot be mapped
+	 */
+	public MappedPreferencesFactory(final File file) throws IOException {
+		this(file, MappedPreferencesFactory.DEFAULT_INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @param file
+	 *            the file shared by the processes, created if it does not exist
+	 * @param initialCapacity
+	 *            the size of the file if it is created, grown when full
+	 * @throws IOException
+	 *             if the file cannot be mapped
+	 */
+	public MappedPreferencesFactory(final File file, final int initialCapacity) throws IOException {
+		super();
+
+		Assert.notNull(file, "No File provided !");
+
+		this.store = new MappedStore(file, initialCapacity);
+		this.instance = new MappedPreferences(this.store);
+	}
+
+	@Override
+	public Preferences systemRoot() {
+		return this.instance;
+	}
+
+	@Override
+	public Preferences userRoot() {
+		return this.instance;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.store.close();
+	}
+
+}
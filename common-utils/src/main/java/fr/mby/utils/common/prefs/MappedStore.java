@@ -0,0 +1,691 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.mby.utils.common.prefs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.util.Assert;
+
+/**
+ * Store of the keys of a preferences tree in a memory mapped file, shared by all the processes mapping it. Readers look
+ * the keys up directly in the mapped file, without copy nor lock.
+ *
+ * The file holds a header and a region : an open addressing table of slots followed by an append only data area. A
+ * slot holds the position of an entry in the data area : a node mark, or a key of a node and its value. Changing a key
+ * appends a new entry and points the slot to it. Once the data area or the table is full, the live entries are
+ * rewritten in a new region, before the current one if there is room, else after it in a file grown if needed. The new
+ * region is published by writing its position in the header : a writer dying during a rewrite leaves the current region
+ * untouched.
+ *
+ * Writers take a lock on the file, and make the version in the header odd while they write. Readers retry when the
+ * version was odd or changed during their read, as a seqlock. A version found odd under the lock of the file was left
+ * by a dead writer : the region is rebuilt from its valid entries and the version made even again. A reader notices a
+ * file grown by another process by its capacity in the header, and maps it again.
+ *
+ * The accesses to a MappedByteBuffer are plain accesses, which the compiler and the processor may reorder. A full
+ * fence, a volatile write followed by a volatile read, separates the accesses to the version from the accesses to the
+ * data : the writer writes the data after making the version odd and before making it even again, the reader reads the
+ * data after reading the version and before reading it again. A reader finding the same even version before and after
+ * its read thus read data no writer changed meanwhile.
+ *
+ * @author Maxime Bossard - 2013
+ *
+ */
+final class MappedStore implements Closeable {
+
+	private static final int MAGIC = 0x53504D46;
+
+	private static final int MAGIC_OFFSET = 0;
+
+	private static final int REGION_OFFSET = 4;
+
+	private static final int VERSION_OFFSET = 8;
+
+	private static final int CAPACITY_OFFSET = 16;
+
+	private static final int HEADER_SIZE = 24;
+
+	/** Offsets in the header of a region. */
+	private static final int SLOT_COUNT_OFFSET = 0;
+
+	private static final int DATA_END_OFFSET = 4;
+
+	private static final int USED_SLOTS_OFFSET = 8;
+
+	private static final int LIMIT_OFFSET = 12;
+
+	private static final int REGION_HEADER_SIZE = 16;
+
+	private static final int MIN_SLOT_COUNT = 256;
+
+	private static final int EMPTY_SLOT = 0;
+
+	private static final int REMOVED_SLOT = -1;
+
+	private static final byte NODE_ENTRY = 0;
+
+	private static final byte KEY_ENTRY = 1;
+
+	/** Yields of a reader waiting for an odd version before checking the writer is still alive. */
+	private static final int MAX_SPINS = 1000;
+
+	/** Writers of the same file in this process, as a file lock is held by the whole process. */
+	private static final ConcurrentMap<String, Object> PROCESS_LOCKS = new ConcurrentHashMap<String, Object>();
+
+	/** Written then read by fullFence(). */
+	private static final AtomicInteger FENCE = new AtomicInteger();
+
+	private final RandomAccessFile file;
+
+	private final FileChannel channel;
+
+	private final Object processLock;
+
+	private volatile MappedByteBuffer buffer;
+
+	/**
+	 * Map a file, initializing it if it is empty.
+	 *
+	 * @param file
+	 *            the file shared by the processes
+	 * @param initialCapacity
+	 *            the size of the file if it is created
+	 */
+	MappedStore(final File file, final int initialCapacity) throws IOException {
+		Assert.notNull(file, "No File provided !");
+		Assert.isTrue(initialCapacity >= MappedStore.HEADER_SIZE + MappedStore.REGION_HEADER_SIZE
+				+ MappedStore.MIN_SLOT_COUNT * 4 * 2,
+				"Initial capacity too small !");
+
+		final String path = file.getCanonicalPath();
+		MappedStore.PROCESS_LOCKS.putIfAbsent(path, new Object());
+		this.processLock = MappedStore.PROCESS_LOCKS.get(path);
+
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+
+		synchronized (this.processLock) {
+			final FileLock fileLock = this.channel.lock();
+			try {
+				if (this.channel.size() < MappedStore.HEADER_SIZE || this.isUninitialized()) {
+					this.file.setLength(initialCapacity);
+					final MappedByteBuffer mapped = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, initialCapacity);
+					this.buffer = mapped;
+					mapped.putLong(MappedStore.VERSION_OFFSET, 0);
+					mapped.putInt(MappedStore.CAPACITY_OFFSET, initialCapacity);
+					MappedStore.format(mapped, MappedStore.HEADER_SIZE, MappedStore.MIN_SLOT_COUNT, initialCapacity);
+					mapped.putInt(MappedStore.REGION_OFFSET, MappedStore.HEADER_SIZE);
+					this.store(MappedStore.NODE_ENTRY, "/", "", "");
+					// Written last : a file created by a dead process is initialized again
+					mapped.putInt(MappedStore.MAGIC_OFFSET, MappedStore.MAGIC);
+				} else {
+					this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, this.channel.size());
+					if (this.buffer.getInt(MappedStore.MAGIC_OFFSET) != MappedStore.MAGIC) {
+						throw new IOException("Not a mapped preferences file: " + file);
+					}
+					if ((this.version() & 1) != 0) {
+						this.recover();
+					}
+				}
+			} finally {
+				fileLock.release();
+			}
+		}
+	}
+
+	/**
+	 * @return the version of the store, changed by each write
+	 */
+	long version() {
+		return this.buffer.getLong(MappedStore.VERSION_OFFSET);
+	}
+
+	/**
+	 * @return the value of a key of a node, null if none
+	 */
+	String get(final String path, final String key) {
+		while (true) {
+			final MappedByteBuffer mapped = this.stableBuffer();
+			final long version = mapped.getLong(MappedStore.VERSION_OFFSET);
+			String value = null;
+			MappedStore.fullFence();
+			try {
+				final int slot = MappedStore.findSlot(mapped, MappedStore.KEY_ENTRY, path, key);
+				final int entry = mapped.getInt(slot);
+				if (entry > 0) {
+					value = MappedStore.readValue(mapped, entry);
+				}
+			} catch (final IndexOutOfBoundsException e) {
+				// Read during a write
+			}
+			MappedStore.fullFence();
+			if ((version & 1) == 0 && mapped.getLong(MappedStore.VERSION_OFFSET) == version) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the node exists
+	 */
+	boolean nodeExists(final String path) {
+		while (true) {
+			final MappedByteBuffer mapped = this.stableBuffer();
+			final long version = mapped.getLong(MappedStore.VERSION_OFFSET);
+			boolean exists = false;
+			MappedStore.fullFence();
+			try {
+				final int slot = MappedStore.findSlot(mapped, MappedStore.NODE_ENTRY, path, "");
+				exists = mapped.getInt(slot) > 0;
+			} catch (final IndexOutOfBoundsException e) {
+				// Read during a write
+			}
+			MappedStore.fullFence();
+			if ((version & 1) == 0 && mapped.getLong(MappedStore.VERSION_OFFSET) == version) {
+				return exists;
+			}
+		}
+	}
+
+	/**
+	 * @return the keys of a node
+	 */
+	List<String> keys(final String path) {
+		return this.scan(MappedStore.KEY_ENTRY, path);
+	}
+
+	/**
+	 * @return the names of the children of a node
+	 */
+	List<String> childrenNames(final String path) {
+		final String prefix = "/".equals(path) ? "/" : path + "/";
+		final List<String> names = new ArrayList<String>();
+		for (final String nodePath : this.scan(MappedStore.NODE_ENTRY, null)) {
+			if (nodePath.length() > prefix.length() && nodePath.startsWith(prefix)
+					&& nodePath.indexOf('/', prefix.length()) < 0) {
+				names.add(nodePath.substring(prefix.length()));
+			}
+		}
+		return names;
+	}
+
+	void put(final String path, final String key, final String value) throws IOException {
+		synchronized (this.processLock) {
+			final FileLock fileLock = this.beginWrite();
+			try {
+				this.store(MappedStore.KEY_ENTRY, path, key, value);
+			} finally {
+				this.endWrite(fileLock);
+			}
+		}
+	}
+
+	void remove(final String path, final String key) throws IOException {
+		synchronized (this.processLock) {
+			final FileLock fileLock = this.beginWrite();
+			try {
+				final int slot = this.findSlot(MappedStore.KEY_ENTRY, path, key);
+				if (this.buffer.getInt(slot) > 0) {
+					this.buffer.putInt(slot, MappedStore.REMOVED_SLOT);
+				}
+			} finally {
+				this.endWrite(fileLock);
+			}
+		}
+	}
+
+	/**
+	 * Create a node if it does not exist.
+	 *
+	 * @return true if the node was created
+	 */
+	boolean addNode(final String path) throws IOException {
+		if (this.nodeExists(path)) {
+			return false;
+		}
+
+		synchronized (this.processLock) {
+			final FileLock fileLock = this.beginWrite();
+			try {
+				if (this.buffer.getInt(this.findSlot(MappedStore.NODE_ENTRY, path, "")) > 0) {
+					// Created meanwhile
+					return false;
+				}
+				this.store(MappedStore.NODE_ENTRY, path, "", "");
+				return true;
+			} finally {
+				this.endWrite(fileLock);
+			}
+		}
+	}
+
+	/**
+	 * Remove a node and its keys. Its children must be removed first.
+	 */
+	void removeNode(final String path) throws IOException {
+		synchronized (this.processLock) {
+			final FileLock fileLock = this.beginWrite();
+			try {
+				final MappedByteBuffer mapped = this.buffer;
+				final int region = mapped.getInt(MappedStore.REGION_OFFSET);
+				final int slotCount = mapped.getInt(region + MappedStore.SLOT_COUNT_OFFSET);
+				for (int k = 0; k < slotCount; k++) {
+					final int slot = region + MappedStore.REGION_HEADER_SIZE + k * 4;
+					final int entry = mapped.getInt(slot);
+					if (entry > 0 && MappedStore.matches(mapped, entry + 5, path)) {
+						mapped.putInt(slot, MappedStore.REMOVED_SLOT);
+					}
+				}
+			} finally {
+				this.endWrite(fileLock);
+			}
+		}
+	}
+
+	/**
+	 * Write the mapped file to the disk.
+	 */
+	void force() {
+		this.buffer.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.force();
+		this.file.close();
+	}
+
+	/**
+	 * @return the mapped file, mapped again if grown by another process
+	 */
+	private MappedByteBuffer stableBuffer() {
+		int spins = 0;
+		while (true) {
+			final MappedByteBuffer mapped = this.buffer;
+			final long version = mapped.getLong(MappedStore.VERSION_OFFSET);
+			if ((version & 1) != 0) {
+				// Being written
+				if (++spins % MappedStore.MAX_SPINS == 0) {
+					this.recoverDeadWriter();
+				} else {
+					Thread.yield();
+				}
+			} else if (mapped.getInt(MappedStore.CAPACITY_OFFSET) > mapped.capacity()) {
+				synchronized (this.processLock) {
+					this.remap();
+				}
+			} else {
+				return mapped;
+			}
+		}
+	}
+
+	private void remap() {
+		try {
+			if (this.buffer.capacity() < this.channel.size()) {
+				this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, this.channel.size());
+			}
+		} catch (final IOException e) {
+			throw new IllegalStateException("Unable to map the preferences file !", e);
+		}
+	}
+
+	/**
+	 * Rebuild the store if the version is odd while no writer holds the lock of the file.
+	 */
+	private void recoverDeadWriter() {
+		synchronized (this.processLock) {
+			try {
+				// The writers of this process are excluded by the process lock
+				final FileLock fileLock = this.channel.tryLock();
+				if (fileLock != null) {
+					try {
+						this.remap();
+						if ((this.version() & 1) != 0) {
+							this.recover();
+						}
+					} finally {
+						fileLock.release();
+					}
+				}
+			} catch (final IOException e) {
+				throw new IllegalStateException("Unable to recover the preferences file !", e);
+			}
+		}
+	}
+
+	/**
+	 * Rebuild the region from its valid entries, and make the version even. Called under the locks, with a version
+	 * left odd by a dead writer.
+	 */
+	private void recover() throws IOException {
+		this.rewrite(0);
+		final MappedByteBuffer mapped = this.buffer;
+		MappedStore.fullFence();
+		mapped.putLong(MappedStore.VERSION_OFFSET, mapped.getLong(MappedStore.VERSION_OFFSET) + 1);
+	}
+
+	/**
+	 * Lock the file and make the version odd. Called under the process lock.
+	 */
+	private FileLock beginWrite() throws IOException {
+		final FileLock fileLock = this.channel.lock();
+		// Grown by another process
+		this.remap();
+		final MappedByteBuffer mapped = this.buffer;
+		final long version = mapped.getLong(MappedStore.VERSION_OFFSET);
+		if ((version & 1) != 0) {
+			// Left odd by a dead writer : kept odd while rebuilt
+			this.rewrite(0);
+		} else {
+			mapped.putLong(MappedStore.VERSION_OFFSET, version + 1);
+			MappedStore.fullFence();
+		}
+		return fileLock;
+	}
+
+	/**
+	 * Make the version even again and release the lock of the file.
+	 */
+	private void endWrite(final FileLock fileLock) throws IOException {
+		final MappedByteBuffer mapped = this.buffer;
+		MappedStore.fullFence();
+		mapped.putLong(MappedStore.VERSION_OFFSET, mapped.getLong(MappedStore.VERSION_OFFSET) + 1);
+		fileLock.release();
+	}
+
+	/**
+	 * Store an entry, rewriting the store if it is full. Called while writing.
+	 */
+	private void store(final byte type, final String path, final String key, final String value) throws IOException {
+		final int size = MappedStore.entrySize(path, key, value);
+		MappedByteBuffer mapped = this.buffer;
+		int region = mapped.getInt(MappedStore.REGION_OFFSET);
+		int slot = MappedStore.findSlot(mapped, region, type, path, key);
+		final boolean newSlot = mapped.getInt(slot) == MappedStore.EMPTY_SLOT;
+		final int slotCount = mapped.getInt(region + MappedStore.SLOT_COUNT_OFFSET);
+		if (mapped.getInt(region + MappedStore.DATA_END_OFFSET) + (long) size > mapped
+				.getInt(region + MappedStore.LIMIT_OFFSET)
+				|| newSlot && (mapped.getInt(region + MappedStore.USED_SLOTS_OFFSET) + 1) * 4 > slotCount * 3) {
+			this.rewrite(size);
+			mapped = this.buffer;
+			region = mapped.getInt(MappedStore.REGION_OFFSET);
+			slot = MappedStore.findSlot(mapped, region, type, path, key);
+		}
+
+		MappedStore.writeEntry(mapped, region, slot, type, path, key, value);
+	}
+
+	/**
+	 * Rewrite the valid live entries in a new region with a table sized for them, growing the file if needed, then
+	 * publish it. The current region is only read : it stays valid until the new one is published. Called while
+	 * writing.
+	 */
+	private void rewrite(final int extraSize) throws IOException {
+		MappedByteBuffer mapped = this.buffer;
+		final int region = mapped.getInt(MappedStore.REGION_OFFSET);
+		final List<Object[]> entries = new ArrayList<Object[]>();
+		int dataSize = extraSize;
+		final int slotCount = mapped.getInt(region + MappedStore.SLOT_COUNT_OFFSET);
+		for (int k = 0; k < slotCount; k++) {
+			final int entry = mapped.getInt(region + MappedStore.REGION_HEADER_SIZE + k * 4);
+			if (entry > 0) {
+				try {
+					final byte type = mapped.get(entry + 4);
+					final String path = MappedStore.readString(mapped, entry + 5);
+					final String key = MappedStore.readString(mapped, entry + 5 + 4 + path.length() * 2);
+					final String value = MappedStore.readValue(mapped, entry);
+					if (mapped.getInt(entry) == MappedStore.hash(type, path, key)) {
+						entries.add(new Object[] {type, path, key, value});
+						dataSize += MappedStore.entrySize(path, key, value);
+					}
+				} catch (final IndexOutOfBoundsException e) {
+					// Torn by a dead writer : dropped
+				}
+			}
+		}
+
+		int newSlotCount = MappedStore.MIN_SLOT_COUNT;
+		while (newSlotCount < (entries.size() + 1) * 2) {
+			newSlotCount *= 2;
+		}
+		// Room for the next changes
+		final long regionSize = MappedStore.REGION_HEADER_SIZE + newSlotCount * 4L + dataSize * 2L;
+		final int start;
+		int limit;
+		if (region - MappedStore.HEADER_SIZE >= regionSize) {
+			start = MappedStore.HEADER_SIZE;
+			limit = region;
+		} else {
+			start = mapped.getInt(region + MappedStore.DATA_END_OFFSET) + 7 & ~7;
+			final long required = start + regionSize;
+			limit = mapped.capacity();
+			if (required > limit) {
+				Assert.state(required <= Integer.MAX_VALUE, "Mapped preferences too big !");
+				limit = (int) Math.max(required, Math.min(limit * 2L, Integer.MAX_VALUE));
+				this.file.setLength(limit);
+				mapped = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, limit);
+				mapped.putInt(MappedStore.CAPACITY_OFFSET, limit);
+				this.buffer = mapped;
+			}
+		}
+
+		MappedStore.format(mapped, start, newSlotCount, limit);
+		for (final Object[] entry : entries) {
+			final byte type = (Byte) entry[0];
+			final String path = (String) entry[1];
+			final String key = (String) entry[2];
+			MappedStore.writeEntry(mapped, start, MappedStore.findSlot(mapped, start, type, path, key), type, path,
+					key, (String) entry[3]);
+		}
+		// On the disk before being published
+		mapped.force();
+		mapped.putInt(MappedStore.REGION_OFFSET, start);
+	}
+
+	/**
+	 * @return true if the file was created by a process dead before writing the magic number
+	 */
+	private boolean isUninitialized() throws IOException {
+		final ByteBuffer magic = ByteBuffer.allocate(4);
+		this.channel.read(magic, MappedStore.MAGIC_OFFSET);
+		return magic.getInt(0) == 0;
+	}
+
+	/**
+	 * Write an empty region. Called while writing.
+	 */
+	private static void format(final MappedByteBuffer mapped, final int region, final int slotCount, final int limit) {
+		mapped.putInt(region + MappedStore.SLOT_COUNT_OFFSET, slotCount);
+		mapped.putInt(region + MappedStore.USED_SLOTS_OFFSET, 0);
+		mapped.putInt(region + MappedStore.LIMIT_OFFSET, limit);
+		final int slotsStart = region + MappedStore.REGION_HEADER_SIZE;
+		final int dataStart = slotsStart + slotCount * 4;
+		for (int position = slotsStart; position < dataStart; position += 4) {
+			mapped.putInt(position, MappedStore.EMPTY_SLOT);
+		}
+		mapped.putInt(region + MappedStore.DATA_END_OFFSET, dataStart);
+	}
+
+	/**
+	 * Append an entry to the data area of a region and point a slot to it. The slot is written last : a writer dying
+	 * before only leaves garbage after the data end.
+	 */
+	private static void writeEntry(final MappedByteBuffer mapped, final int region, final int slot, final byte type,
+			final String path, final String key, final String value) {
+		final int entry = mapped.getInt(region + MappedStore.DATA_END_OFFSET);
+		int position = entry;
+		mapped.putInt(position, MappedStore.hash(type, path, key));
+		mapped.put(position + 4, type);
+		position = MappedStore.writeString(mapped, position + 5, path);
+		position = MappedStore.writeString(mapped, position, key);
+		position = MappedStore.writeString(mapped, position, value);
+		mapped.putInt(region + MappedStore.DATA_END_OFFSET, position);
+
+		if (mapped.getInt(slot) == MappedStore.EMPTY_SLOT) {
+			mapped.putInt(region + MappedStore.USED_SLOTS_OFFSET,
+					mapped.getInt(region + MappedStore.USED_SLOTS_OFFSET) + 1);
+		}
+		mapped.putInt(slot, entry);
+	}
+
+	private int findSlot(final byte type, final String path, final String key) {
+		return MappedStore.findSlot(this.buffer, type, path, key);
+	}
+
+	private static int findSlot(final MappedByteBuffer mapped, final byte type, final String path, final String key) {
+		return MappedStore.findSlot(mapped, mapped.getInt(MappedStore.REGION_OFFSET), type, path, key);
+	}
+
+	/**
+	 * @return the position of the slot of an entry in a region, or of the empty slot ending its probe sequence
+	 * @throws IndexOutOfBoundsException
+	 *             if the table is read during a write
+	 */
+	private static int findSlot(final MappedByteBuffer mapped, final int region, final byte type, final String path,
+			final String key) {
+		final int hash = MappedStore.hash(type, path, key);
+		final int slotCount = mapped.getInt(region + MappedStore.SLOT_COUNT_OFFSET);
+		final int mask = slotCount - 1;
+		if (slotCount <= 0 || (slotCount & mask) != 0) {
+			throw new IndexOutOfBoundsException("Bad slot count: " + slotCount);
+		}
+
+		int index = hash & mask;
+		for (int probes = 0; probes < slotCount; probes++) {
+			final int slot = region + MappedStore.REGION_HEADER_SIZE + index * 4;
+			final int entry = mapped.getInt(slot);
+			if (entry == MappedStore.EMPTY_SLOT) {
+				return slot;
+			}
+			if (entry > 0 && mapped.getInt(entry) == hash && mapped.get(entry + 4) == type
+					&& MappedStore.matches(mapped, entry + 5, path)
+					&& MappedStore.matches(mapped, entry + 5 + 4 + path.length() * 2, key)) {
+				return slot;
+			}
+			index = index + 1 & mask;
+		}
+		throw new IndexOutOfBoundsException("No empty slot");
+	}
+
+	/**
+	 * @return the paths of the nodes if type is NODE_ENTRY, else the keys of the node of a path
+	 */
+	private List<String> scan(final byte type, final String path) {
+		while (true) {
+			final MappedByteBuffer mapped = this.stableBuffer();
+			final long version = mapped.getLong(MappedStore.VERSION_OFFSET);
+			final List<String> found = new ArrayList<String>();
+			MappedStore.fullFence();
+			try {
+				final int region = mapped.getInt(MappedStore.REGION_OFFSET);
+				final int slotCount = mapped.getInt(region + MappedStore.SLOT_COUNT_OFFSET);
+				for (int k = 0; k < slotCount; k++) {
+					final int entry = mapped.getInt(region + MappedStore.REGION_HEADER_SIZE + k * 4);
+					if (entry > 0 && mapped.get(entry + 4) == type) {
+						if (type == MappedStore.NODE_ENTRY) {
+							found.add(MappedStore.readString(mapped, entry + 5));
+						} else if (MappedStore.matches(mapped, entry + 5, path)) {
+							found.add(MappedStore.readString(mapped, entry + 5 + 4 + path.length() * 2));
+						}
+					}
+				}
+			} catch (final IndexOutOfBoundsException e) {
+				// Read during a write
+			}
+			MappedStore.fullFence();
+			if ((version & 1) == 0 && mapped.getLong(MappedStore.VERSION_OFFSET) == version) {
+				return found;
+			}
+		}
+	}
+
+	/**
+	 * Full fence : no access before it is reordered with an access after it, as a volatile write is not reordered with
+	 * a following volatile read.
+	 */
+	private static void fullFence() {
+		MappedStore.FENCE.set(0);
+		MappedStore.FENCE.get();
+	}
+
+	private static int hash(final byte type, final String path, final String key) {
+		final int hash = (path.hashCode() * 31 + key.hashCode()) * 31 + type;
+		return hash ^ hash >>> 16;
+	}
+
+	private static int entrySize(final String path, final String key, final String value) {
+		return 4 + 1 + 3 * 4 + (path.length() + key.length() + value.length()) * 2;
+	}
+
+	/**
+	 * @return true if the string at a position is equal to a string, compared without copy
+	 */
+	private static boolean matches(final MappedByteBuffer mapped, final int position, final String string) {
+		final int length = string.length();
+		if (mapped.getInt(position) != length) {
+			return false;
+		}
+		for (int k = 0; k < length; k++) {
+			if (mapped.getChar(position + 4 + k * 2) != string.charAt(k)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String readValue(final MappedByteBuffer mapped, final int entry) {
+		int position = entry + 5;
+		position += 4 + mapped.getInt(position) * 2;
+		position += 4 + mapped.getInt(position) * 2;
+		return MappedStore.readString(mapped, position);
+	}
+
+	private static String readString(final MappedByteBuffer mapped, final int position) {
+		final int length = mapped.getInt(position);
+		if (length < 0 || position + 4 + length * 2L > mapped.capacity()) {
+			throw new IndexOutOfBoundsException("Bad string length: " + length);
+		}
+		final char[] chars = new char[length];
+		for (int k = 0; k < length; k++) {
+			chars[k] = mapped.getChar(position + 4 + k * 2);
+		}
+		return new String(chars);
+	}
+
+	private static int writeString(final MappedByteBuffer mapped, final int position, final String string) {
+		final int length = string.length();
+		mapped.putInt(position, length);
+		for (int k = 0; k < length; k++) {
+			mapped.putChar(position + 4 + k * 2, string.charAt(k));
+		}
+		return position + 4 + length * 2;
+	}
+
+}
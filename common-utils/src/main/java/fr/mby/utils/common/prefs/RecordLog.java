@@ -0,0 +1,118 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mby.utils.common.prefs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Log the records of a preferences tree are appended to and read from.
+ * 
+ * A record is framed by a header : its type on one byte, the length of its payload and the CRC32 of its payload on
+ * four bytes each.
+ * 
+ * @author Maxime Bossard - 2013
+ * 
+ */
+abstract class RecordLog implements Closeable {
+
+	/** Size of a record header : its type, its length and its checksum. */
+	static final int HEADER_SIZE = 9;
+
+	/** Record holding the image of the whole tree. */
+	static final byte IMAGE_RECORD = 1;
+
+	/** Record holding the changes since the previous record. */
+	static final byte DELTA_RECORD = 2;
+
+	/**
+	 * Append a framed record. An image record holds all the content of the log : the records before it may be dropped.
+	 * The record may not be durable before the next call to sync().
+	 * 
+	 * @param record
+	 *            the buffer holding the record, header included
+	 * @param length
+	 *            the length of the record in the buffer, header included
+	 */
+	abstract void append(byte[] record, int length) throws IOException;
+
+	/**
+	 * Make durable the records appended before the call.
+	 */
+	abstract void sync() throws IOException;
+
+	/**
+	 * Read the complete records appended since the last read.
+	 * 
+	 * @param records
+	 *            the list to add the records to, in log order
+	 */
+	abstract void read(List<Record> records) throws IOException;
+
+	/**
+	 * Fill the header of a record.
+	 * 
+	 * @param record
+	 *            the buffer holding the record, with its type already written
+	 * @param length
+	 *            the length of the record in the buffer, header included
+	 */
+	static void frame(final byte[] record, final int length) {
+		final int payloadLength = length - RecordLog.HEADER_SIZE;
+		RecordLog.writeInt(record, 1, payloadLength);
+		RecordLog.writeInt(record, 5, RecordLog.checksum(record, RecordLog.HEADER_SIZE, payloadLength));
+	}
+
+	static int checksum(final byte[] data, final int offset, final int length) {
+		final CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		return (int) crc.getValue();
+	}
+
+	static int readInt(final byte[] data, final int position) {
+		return (data[position] & 0xff) << 24 | (data[position + 1] & 0xff) << 16 | (data[position + 2] & 0xff) << 8
+				| data[position + 3] & 0xff;
+	}
+
+	static void writeInt(final byte[] data, final int position, final int value) {
+		data[position] = (byte) (value >>> 24);
+		data[position + 1] = (byte) (value >>> 16);
+		data[position + 2] = (byte) (value >>> 8);
+		data[position + 3] = (byte) value;
+	}
+
+	/**
+	 * Record read from a log.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	static final class Record {
+
+		final byte type;
+
+		final byte[] payload;
+
+		Record(final byte type, final byte[] payload) {
+			this.type = type;
+			this.payload = payload;
+		}
+
+	}
+
+}
@@ -16,29 +16,152 @@
 
 package fr.mby.utils.common.prefs;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EventListener;
+import java.util.EventObject;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.prefs.AbstractPreferences;
 import java.util.prefs.BackingStoreException;
+import java.util.prefs.NodeChangeEvent;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
 /**
+ * Preferences persisted in a pair of streams.
+ * 
+ * The streams, or the files of a FileRecordLog, hold a log of length prefixed and checksummed binary records. The
+ * first flush appends an image of the whole tree, the next ones only append a delta of the keys changed and the nodes
+ * removed since. Once the deltas written since the last image outweigh it, a flush compacts the log by appending a new
+ * image instead. A sync reads all the records available and applies the last image and the deltas following it.
+ * 
+ * A tree image is written in pre-order : for each node its name, its keys count, its keys and values, its children
+ * count then its children, each prefixed by its length. Loading an image only materializes the nodes already in
+ * memory : the other children are indexed by the position of their record, and materialized on first access. A delta
+ * holds the paths of the removed nodes, then for each changed node its path and its changed keys with their new value,
+ * or a removal mark. The values written by putInt(), putLong() and putByteArray() are persisted in binary, see
+ * ValueEncoding.
+ * 
+ * The keys are stored in one map by node, or for large trees in one FlatKeyStore shared by all the nodes. Hot reads
+ * can use getCached(), served without lock from an immutable copy of the keys of the node. The typed getters read the
+ * same copy, where the numbers and byte arrays are decoded once.
+ * 
+ * Many changes can be applied by one batch, notified once by node to the batch change listeners and flushed in one
+ * write. The changes applied by a load are notified to the listeners of the nodes in memory, in background.
+ * 
+ * In write behind mode, the changes are flushed in background, periodically or once enough changes are pending. As only
+ * the last value of a changed key is written, many changes of the same key are written once.
+ * 
  * @author Maxime Bossard - 2013
  * 
  */
 public class StreamPreferences extends AbstractPreferences {
 
-	private final OutputStream outputStreamStorage;
+	/** Logger. */
+	private static final Logger LOG = LogManager.getLogger(StreamPreferences.class);
+
+	/** Key change in a delta record : put of a value. */
+	private static final byte PUT_KEY = 1;
+
+	/** Key change in a delta record : removal. */
+	private static final byte REMOVE_KEY = 2;
+
+	/** Max number of delta records between two images. */
+	private static final int MAX_DELTAS = 256;
+
+	/** Deltas are not compacted before this size, to not rewrite small trees too often. */
+	private static final int MIN_COMPACTION_SIZE = 4096;
+
+	private static final PreferenceChangeListener[] NO_CHANGE_LISTENERS = new PreferenceChangeListener[0];
+
+	private static final NodeChangeListener[] NO_NODE_LISTENERS = new NodeChangeListener[0];
+
+	private static final BatchChangeListener[] NO_BATCH_LISTENERS = new BatchChangeListener[0];
+
+	/** Children of the nodes without children, most nodes of a large tree being leaves. */
+	private static final Map<String, AbstractPreferences> NO_CHILDREN = Collections.emptyMap();
+
+	/** Types of the values decoded by the typed getters. */
+	private static final int DECODED_INT = 0;
+
+	private static final int DECODED_LONG = 1;
+
+	private static final int DECODED_FLOAT = 2;
+
+	private static final int DECODED_DOUBLE = 3;
+
+	private static final int DECODED_BYTES = 4;
+
+	private static final int DECODED_TYPES = 5;
 
-	private final InputStream inputStreamStorage;
+	private static final AtomicIntegerFieldUpdater<StreamPreferences> KEYS_VERSION = AtomicIntegerFieldUpdater
+			.newUpdater(StreamPreferences.class, "keysVersion");
 
-	private Map<String, String> prefsStorage;
+	private final Storage storage;
 
-	private Map<String, AbstractPreferences> childrenStorage;
+	private volatile Map<String, String> prefsStorage;
+
+	/** Incremented after each change of the keys. */
+	private volatile int keysVersion = 0;
+
+	/** Last immutable copy of the keys, for the lock free reads. */
+	private volatile KeysSnapshot keysSnapshot;
+
+	/** Created with the first child, null once the node is removed. Replaced under the storage lock. */
+	private volatile Map<String, AbstractPreferences> childrenStorage = StreamPreferences.NO_CHILDREN;
+
+	/** Image the lazy children are indexed in, null if none. Guarded by the storage lock. */
+	private byte[] image;
+
+	/** Position of the records of the children not yet materialized, by name. Guarded by the storage lock. */
+	private volatile Map<String, Integer> lazyChildren;
+
+	/** Listeners also registered in AbstractPreferences, which does not expose them. Guarded by the node lock. */
+	private volatile PreferenceChangeListener[] changeListeners = StreamPreferences.NO_CHANGE_LISTENERS;
+
+	private volatile NodeChangeListener[] nodeChangeListeners = StreamPreferences.NO_NODE_LISTENERS;
+
+	/** Guarded by the node lock. */
+	private volatile BatchChangeListener[] batchChangeListeners = StreamPreferences.NO_BATCH_LISTENERS;
+
+	/** Removed by a load, or descendant of a node removed by a load : its removal is not logged again. */
+	private volatile boolean removedByLoad;
+
+	/** Keys changed since the last flush. */
+	private final Set<String> dirtyKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
 	/**
 	 * @param parent
@@ -46,30 +169,338 @@ public class StreamPreferences extends AbstractPreferences {
 	 */
 	public StreamPreferences(final AbstractPreferences parent, final String name, final InputStream inputStream,
 			final OutputStream outputStream) {
+		this(parent, name, new StreamRecordLog(inputStream, outputStream), false);
+	}
+
+	/**
+	 * @param parent
+	 * @param name
+	 */
+	protected StreamPreferences(final InputStream inputStream, final OutputStream outputStream) {
+		this(null, "", new StreamRecordLog(inputStream, outputStream), false);
+	}
+
+	/**
+	 * @param flatKeyStore
+	 *            store the keys of all the nodes in one FlatKeyStore instead of one map by node
+	 */
+	protected StreamPreferences(final InputStream inputStream, final OutputStream outputStream,
+			final boolean flatKeyStore) {
+		this(null, "", new StreamRecordLog(inputStream, outputStream), flatKeyStore);
+	}
+
+	/**
+	 * @param log
+	 *            the log the tree is persisted in
+	 * @param flatKeyStore
+	 *            store the keys of all the nodes in one FlatKeyStore instead of one map by node
+	 */
+	StreamPreferences(final RecordLog log, final boolean flatKeyStore) {
+		this(null, "", log, flatKeyStore);
+	}
+
+	private StreamPreferences(final AbstractPreferences parent, final String name, final RecordLog log,
+			final boolean flatKeyStore) {
+		super(parent, name);
+
+		if (parent instanceof StreamPreferences) {
+			this.storage = ((StreamPreferences) parent).storage;
+		} else {
+			this.storage = new Storage(this, log, flatKeyStore);
+		}
+
+		this.prefsStorage = this.storage.newKeyMap();
+	}
+
+	/**
+	 * Child node sharing the storage of its parent.
+	 */
+	private StreamPreferences(final StreamPreferences parent, final String name) {
 		super(parent, name);
 
-		Assert.notNull(inputStream, "No InputStream provided !");
-		Assert.notNull(outputStream, "No OutputStream provided !");
-		Assert.isTrue(inputStream.markSupported(), "The provided InputStream does not support mark !");
+		this.storage = parent.storage;
+		this.removedByLoad = parent.removedByLoad;
+		this.prefsStorage = this.storage.newKeyMap();
+	}
 
-		this.inputStreamStorage = inputStream;
-		this.outputStreamStorage = outputStream;
+	/**
+	 * Read a value without taking the node lock, unlike get(). The value is read in an immutable copy of the keys of
+	 * the node, copied again on the first read following a change.
+	 * 
+	 * @param key
+	 *            key whose associated value is to be returned
+	 * @param def
+	 *            the value to be returned if no value is associated with the key
+	 * @return the value associated with the key, or def
+	 * @throws IllegalStateException
+	 *             if this node has been removed
+	 */
+	public String getCached(final String key, final String def) throws IllegalStateException {
+		Assert.notNull(key, "No key provided !");
 
-		this.prefsStorage = new ConcurrentHashMap<String, String>();
-		this.childrenStorage = new ConcurrentHashMap<String, AbstractPreferences>();
+		final String value = this.snapshot().get(key);
+		return value != null ? value : def;
 	}
 
 	/**
-	 * @param parent
-	 * @param name
+	 * @return an immutable copy of the keys and values of this node, without taking the node lock
+	 * @throws IllegalStateException
+	 *             if this node has been removed
 	 */
-	protected StreamPreferences(final InputStream inputStream, final OutputStream outputStream) {
-		this(null, "", inputStream, outputStream);
+	public Map<String, String> snapshot() throws IllegalStateException {
+		return this.currentSnapshot().keys;
+	}
+
+	/**
+	 * The typed getters read the values without taking the node lock, as getCached(). The numbers and the byte arrays
+	 * are decoded once by snapshot of the keys, then read without allocation.
+	 */
+	@Override
+	public int getInt(final String key, final int def) {
+		final Object value = this.decoded(key, StreamPreferences.DECODED_INT);
+		return value != null ? (Integer) value : def;
+	}
+
+	@Override
+	public long getLong(final String key, final long def) {
+		final Object value = this.decoded(key, StreamPreferences.DECODED_LONG);
+		return value != null ? (Long) value : def;
+	}
+
+	@Override
+	public float getFloat(final String key, final float def) {
+		final Object value = this.decoded(key, StreamPreferences.DECODED_FLOAT);
+		return value != null ? (Float) value : def;
+	}
+
+	@Override
+	public double getDouble(final String key, final double def) {
+		final Object value = this.decoded(key, StreamPreferences.DECODED_DOUBLE);
+		return value != null ? (Double) value : def;
+	}
+
+	/**
+	 * @return a copy of the array decoded once by snapshot of the keys, or def
+	 */
+	@Override
+	public byte[] getByteArray(final String key, final byte[] def) {
+		final Object value = this.decoded(key, StreamPreferences.DECODED_BYTES);
+		return value != null ? ((byte[]) value).clone() : def;
+	}
+
+	/**
+	 * @return the snapshot of the current keys
+	 */
+	private KeysSnapshot currentSnapshot() {
+		final KeysSnapshot snapshot = this.keysSnapshot;
+		if (snapshot != null && snapshot.version == this.keysVersion) {
+			return snapshot;
+		}
+
+		// Read the version before copying : a change during the copy makes the copy outdated
+		final int version = this.keysVersion;
+		final Map<String, String> prefs = this.prefsStorage;
+		if (prefs == null) {
+			throw new IllegalStateException("Node has been removed.");
+		}
+		final Map<String, String> keys = Collections.unmodifiableMap(new HashMap<String, String>(prefs));
+		final KeysSnapshot copy = new KeysSnapshot(version, keys);
+		this.keysSnapshot = copy;
+		return copy;
+	}
+
+	/**
+	 * Decode a value of the snapshot of the keys, caching it in the snapshot.
+	 * 
+	 * @param type
+	 *            one of the DECODED_ types
+	 * @return the value decoded, null if missing or not of this type
+	 * @throws NullPointerException
+	 *             if key is null, as the getters of Preferences
+	 */
+	private Object decoded(final String key, final int type) {
+		if (key == null) {
+			throw new NullPointerException("Null key");
+		}
+
+		final KeysSnapshot snapshot = this.currentSnapshot();
+		final Object[] cached = snapshot.decoded.get(key);
+		if (cached != null && cached[type] != null) {
+			return cached[type];
+		}
+
+		final String value = snapshot.keys.get(key);
+		if (value == null) {
+			return null;
+		}
+		final Object decoded;
+		try {
+			switch (type) {
+				case DECODED_INT :
+					decoded = Integer.valueOf(Integer.parseInt(value));
+					break;
+				case DECODED_LONG :
+					decoded = Long.valueOf(Long.parseLong(value));
+					break;
+				case DECODED_FLOAT :
+					decoded = Float.valueOf(Float.parseFloat(value));
+					break;
+				case DECODED_DOUBLE :
+					decoded = Double.valueOf(Double.parseDouble(value));
+					break;
+				default :
+					decoded = ValueEncoding.decodeBase64(value);
+					break;
+			}
+		} catch (final NumberFormatException e) {
+			return null;
+		}
+		if (decoded != null) {
+			// Copied, not to publish a changed array : a value cached concurrently for another type may be lost
+			final Object[] values = cached != null ? cached.clone() : new Object[StreamPreferences.DECODED_TYPES];
+			values[type] = decoded;
+			snapshot.decoded.put(key, values);
+		}
+		return decoded;
+	}
+
+	/**
+	 * Apply many changes to this node and its descendants at once, instead of one put() or remove() by key. The
+	 * changes are applied under the storage lock, so a flush writes all of them or none. Each key changed is notified to
+	 * the preference change listeners of its node, and each node changed is notified once to its batch change listeners,
+	 * with a BatchChangeEvent holding all its changes. Unless the tree is flushed in background, the changes are then
+	 * flushed in one write.
+	 * 
+	 * @param changes
+	 *            the changes by path of node relative to this node, "" for this node. For each node, the new values by
+	 *            key, a null value removing the key.
+	 * @throws IllegalArgumentException
+	 *             if a key, a value or a path is invalid : nothing is applied
+	 * @throws IllegalStateException
+	 *             if this node has been removed
+	 * @throws BackingStoreException
+	 *             if the changes cannot be flushed
+	 */
+	public void putAll(final Map<String, ? extends Map<String, String>> changes) throws BackingStoreException {
+		Assert.notNull(changes, "No changes provided !");
+
+		// Validated first, not to apply a part of the batch only
+		for (final Map.Entry<String, ? extends Map<String, String>> nodeChanges : changes.entrySet()) {
+			Assert.notNull(nodeChanges.getKey(), "No node path provided !");
+			Assert.isTrue(!nodeChanges.getKey().startsWith("/"), "The node paths must be relative !");
+			Assert.notNull(nodeChanges.getValue(), "No node changes provided !");
+			for (final Map.Entry<String, String> change : nodeChanges.getValue().entrySet()) {
+				final String key = change.getKey();
+				Assert.notNull(key, "No key provided !");
+				Assert.isTrue(key.length() <= Preferences.MAX_KEY_LENGTH, "Key too long: " + key);
+				Assert.isTrue(change.getValue() == null || change.getValue().length() <= Preferences.MAX_VALUE_LENGTH,
+						"Value too long for key: " + key);
+			}
+		}
+
+		// The nodes are created out of the storage lock, as it is taken after the node locks
+		final Map<StreamPreferences, Map<String, String>> batch = new LinkedHashMap<StreamPreferences, Map<String, String>>(
+				changes.size());
+		for (final Map.Entry<String, ? extends Map<String, String>> nodeChanges : changes.entrySet()) {
+			final StreamPreferences node = (StreamPreferences) this.node(nodeChanges.getKey());
+			Map<String, String> nodeBatch = batch.get(node);
+			if (nodeBatch == null) {
+				nodeBatch = new LinkedHashMap<String, String>();
+				batch.put(node, nodeBatch);
+			}
+			nodeBatch.putAll(nodeChanges.getValue());
+		}
+
+		synchronized (this.storage) {
+			for (final Map.Entry<StreamPreferences, Map<String, String>> nodeBatch : batch.entrySet()) {
+				nodeBatch.getKey().applyBatch(nodeBatch.getValue());
+			}
+			this.storage.dispatchEvents();
+		}
+
+		if (this.storage.writeBehindExecutor == null) {
+			this.storage.flush();
+		}
+	}
+
+	@Override
+	public void addPreferenceChangeListener(final PreferenceChangeListener pcl) {
+		super.addPreferenceChangeListener(pcl);
+		synchronized (this.lock) {
+			final PreferenceChangeListener[] listeners = Arrays.copyOf(this.changeListeners,
+					this.changeListeners.length + 1);
+			listeners[listeners.length - 1] = pcl;
+			this.changeListeners = listeners;
+		}
+	}
+
+	@Override
+	public void removePreferenceChangeListener(final PreferenceChangeListener pcl) {
+		super.removePreferenceChangeListener(pcl);
+		synchronized (this.lock) {
+			final List<PreferenceChangeListener> listeners = new ArrayList<PreferenceChangeListener>(
+					Arrays.asList(this.changeListeners));
+			listeners.remove(pcl);
+			this.changeListeners = listeners.toArray(StreamPreferences.NO_CHANGE_LISTENERS);
+		}
+	}
+
+	@Override
+	public void addNodeChangeListener(final NodeChangeListener ncl) {
+		super.addNodeChangeListener(ncl);
+		synchronized (this.lock) {
+			final NodeChangeListener[] listeners = Arrays.copyOf(this.nodeChangeListeners,
+					this.nodeChangeListeners.length + 1);
+			listeners[listeners.length - 1] = ncl;
+			this.nodeChangeListeners = listeners;
+		}
+	}
+
+	@Override
+	public void removeNodeChangeListener(final NodeChangeListener ncl) {
+		super.removeNodeChangeListener(ncl);
+		synchronized (this.lock) {
+			final List<NodeChangeListener> listeners = new ArrayList<NodeChangeListener>(
+					Arrays.asList(this.nodeChangeListeners));
+			listeners.remove(ncl);
+			this.nodeChangeListeners = listeners.toArray(StreamPreferences.NO_NODE_LISTENERS);
+		}
+	}
+
+	/**
+	 * Register a listener notified once by batch changing the keys of this node.
+	 * 
+	 * @throws IllegalStateException
+	 *             if this node has been removed
+	 */
+	public void addBatchChangeListener(final BatchChangeListener bcl) {
+		Assert.notNull(bcl, "No BatchChangeListener provided !");
+		synchronized (this.lock) {
+			Assert.state(!this.isRemoved(), "Node has been removed !");
+			final BatchChangeListener[] listeners = Arrays.copyOf(this.batchChangeListeners,
+					this.batchChangeListeners.length + 1);
+			listeners[listeners.length - 1] = bcl;
+			this.batchChangeListeners = listeners;
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the listener is not registered on this node
+	 */
+	public void removeBatchChangeListener(final BatchChangeListener bcl) {
+		synchronized (this.lock) {
+			final List<BatchChangeListener> listeners = new ArrayList<BatchChangeListener>(
+					Arrays.asList(this.batchChangeListeners));
+			Assert.isTrue(listeners.remove(bcl), "Listener not registered !");
+			this.batchChangeListeners = listeners.toArray(StreamPreferences.NO_BATCH_LISTENERS);
+		}
 	}
 
 	@Override
 	protected void putSpi(final String key, final String value) {
 		this.prefsStorage.put(key, value);
+		this.keyModified(key);
 	}
 
 	@Override
@@ -80,12 +511,15 @@ public class StreamPreferences extends AbstractPreferences {
 	@Override
 	protected void removeSpi(final String key) {
 		this.prefsStorage.remove(key);
+		this.keyModified(key);
 	}
 
 	@Override
 	protected void removeNodeSpi() throws BackingStoreException {
+		this.storage.nodeRemoved((StreamPreferences) this.parent(), this);
+		this.storage.releaseKeyMap(this.prefsStorage);
 		this.prefsStorage = null;
-		this.childrenStorage = null;
+		this.keysChanged();
 	}
 
 	@Override
@@ -95,25 +529,1056 @@ public class StreamPreferences extends AbstractPreferences {
 
 	@Override
 	protected String[] childrenNamesSpi() throws BackingStoreException {
-		return StringUtils.toStringArray(this.childrenStorage.keySet());
+		if (this.lazyChildren == null) {
+			return StringUtils.toStringArray(this.childrenStorage.keySet());
+		}
+		return this.storage.childrenNames(this);
 	}
 
 	@Override
 	protected AbstractPreferences childSpi(final String name) {
-		final AbstractPreferences child = new StreamPreferences(this, name, this.inputStreamStorage,
-				this.outputStreamStorage);
-		this.childrenStorage.put(name, child);
-		return child;
+		final AbstractPreferences child = this.childrenStorage.get(name);
+		if (child != null) {
+			return child;
+		}
+
+		// The child may be indexed in the storage, or must be created
+		return this.storage.child(this, name);
 	}
 
 	@Override
 	protected void syncSpi() throws BackingStoreException {
-		throw new IllegalAccessError("Not implemented yet !");
+		// As specified, a sync also flushes the local changes
+		this.storage.flush();
+		this.storage.load();
+		this.storage.removeLoadedNodes(this);
 	}
 
 	@Override
 	protected void flushSpi() throws BackingStoreException {
-		throw new IllegalAccessError("Not implemented yet !");
+		this.storage.flush();
+	}
+
+	/**
+	 * Flush the changes of the tree in background. Only one write behind can be started by tree.
+	 * 
+	 * @param executor
+	 *            the executor running the flushes
+	 * @param period
+	 *            the delay between two periodic flushes
+	 * @param unit
+	 *            the period unit
+	 * @param maxPendingChanges
+	 *            number of changes triggering a flush before the end of the period
+	 */
+	protected void startWriteBehind(final ScheduledExecutorService executor, final long period, final TimeUnit unit,
+			final int maxPendingChanges) {
+		Assert.notNull(executor, "No ScheduledExecutorService provided !");
+		Assert.isTrue(period > 0, "The flush period must be positive !");
+		Assert.isTrue(maxPendingChanges > 0, "The max pending changes must be positive !");
+
+		this.storage.startWriteBehind(executor, period, unit, maxPendingChanges);
+	}
+
+	/**
+	 * Stop the background flushes and flush the pending changes.
+	 */
+	protected void stopWriteBehind() throws BackingStoreException {
+		this.storage.stopWriteBehind();
+		this.storage.flush();
+	}
+
+	/**
+	 * Stop the background flushes, flush the pending changes and close the log.
+	 */
+	protected void close() throws BackingStoreException {
+		this.stopWriteBehind();
+		this.storage.stopEventDispatch();
+		try {
+			this.storage.log.close();
+		} catch (final IOException e) {
+			throw new BackingStoreException(e);
+		}
+	}
+
+	/**
+	 * Apply the records appended to the log since the last load, without flushing the local changes.
+	 */
+	void reload() throws BackingStoreException {
+		this.storage.load();
+		this.storage.removeLoadedNodes(null);
+	}
+
+	/**
+	 * Outdate the snapshot of the keys. Called after each change of the keys.
+	 */
+	private void keysChanged() {
+		StreamPreferences.KEYS_VERSION.incrementAndGet(this);
+	}
+
+	/**
+	 * Apply the changes of a batch to the keys of this node. Called under the storage lock.
+	 */
+	private void applyBatch(final Map<String, String> changes) {
+		final Map<String, String> prefs = this.prefsStorage;
+		if (prefs == null) {
+			// Removed meanwhile, as a put racing a removal
+			return;
+		}
+
+		final Map<String, String> applied = new LinkedHashMap<String, String>();
+		for (final Map.Entry<String, String> change : changes.entrySet()) {
+			final String key = change.getKey();
+			final String value = change.getValue();
+			final String previous = value != null ? prefs.put(key, value) : prefs.remove(key);
+			if (value != null ? !value.equals(previous) : previous != null) {
+				applied.put(key, value);
+				if (this.dirtyKeys.add(key)) {
+					this.storage.changed();
+				}
+				this.storage.keyEvent(this, key, value);
+			}
+		}
+
+		if (!applied.isEmpty()) {
+			this.keysChanged();
+			this.storage.nodeModified(this);
+			if (this.batchChangeListeners.length > 0) {
+				this.storage.pendingEvents.add(new BatchChangeEvent(this, applied));
+			}
+		}
+	}
+
+	private void keyModified(final String key) {
+		this.keysChanged();
+		final boolean pending = !this.dirtyKeys.add(key);
+		this.storage.nodeModified(this);
+		if (!pending) {
+			// The changes of a key already pending are coalesced
+			this.storage.changed();
+		}
+	}
+
+	/**
+	 * Write the image of a node and its descendants. The children not yet materialized are copied from the image they
+	 * were indexed in. Called under the storage lock.
+	 * 
+	 * @return false if the node was removed meanwhile
+	 */
+	private boolean writeImage(final RecordBuffer buffer, final DataOutputStream out) throws IOException {
+		final Map<String, String> prefs = this.prefsStorage;
+		final Map<String, AbstractPreferences> children = this.childrenStorage;
+		if (prefs == null || children == null) {
+			return false;
+		}
+
+		out.writeUTF(this.name());
+
+		final Map<String, String> prefsCopy = new HashMap<String, String>(prefs);
+		out.writeInt(prefsCopy.size());
+		for (final Map.Entry<String, String> entry : prefsCopy.entrySet()) {
+			out.writeUTF(entry.getKey());
+			ValueEncoding.writeValue(out, entry.getValue());
+		}
+
+		final int childCountPosition = buffer.size();
+		out.writeInt(0);
+		int childCount = 0;
+		for (final AbstractPreferences kid : children.values().toArray(new AbstractPreferences[0])) {
+			final int lengthPosition = buffer.size();
+			out.writeInt(0);
+			if (((StreamPreferences) kid).writeImage(buffer, out)) {
+				buffer.patchInt(lengthPosition, buffer.size() - lengthPosition - 4);
+				childCount++;
+			} else {
+				buffer.truncate(lengthPosition);
+			}
+		}
+		if (this.lazyChildren != null) {
+			for (final int lengthPosition : this.lazyChildren.values()) {
+				final int length = RecordLog.readInt(this.image, lengthPosition);
+				buffer.write(this.image, lengthPosition, length + 4);
+				childCount++;
+			}
+		}
+		buffer.patchInt(childCountPosition, childCount);
+
+		return true;
+	}
+
+	/**
+	 * Write the changed keys of the node with their current value.
+	 * 
+	 * @return false if the node was removed meanwhile
+	 */
+	private boolean writeDelta(final DataOutputStream out) throws IOException {
+		final Map<String, String> prefs = this.prefsStorage;
+		if (prefs == null || this.removedByLoad) {
+			return false;
+		}
+
+		final List<String> keys = new ArrayList<String>(this.dirtyKeys.size());
+		final Iterator<String> dirtyIterator = this.dirtyKeys.iterator();
+		while (dirtyIterator.hasNext()) {
+			keys.add(dirtyIterator.next());
+			dirtyIterator.remove();
+		}
+
+		out.writeUTF(this.absolutePath());
+		out.writeInt(keys.size());
+		for (final String key : keys) {
+			final String value = prefs.get(key);
+			if (value != null) {
+				out.writeByte(StreamPreferences.PUT_KEY);
+				out.writeUTF(key);
+				ValueEncoding.writeValue(out, value);
+			} else {
+				out.writeByte(StreamPreferences.REMOVE_KEY);
+				out.writeUTF(key);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Replace the keys of a node by the keys of its record in an image, and index its children. The materialized
+	 * children are updated as well, the others are only indexed by the position of their record. As the image holds
+	 * the whole tree, the children missing from it were removed, unless they hold local changes not yet flushed.
+	 * Called under the storage lock.
+	 * 
+	 * @param input
+	 *            the image, positioned after the node name
+	 */
+	private void readImage(final ImageInput input) throws IOException {
+		final DataInputStream in = input.data;
+		final int keyCount = in.readInt();
+		final Map<String, String> prefs = new HashMap<String, String>(keyCount * 2);
+		for (int k = 0; k < keyCount; k++) {
+			final String key = in.readUTF();
+			prefs.put(key, ValueEncoding.readValue(in));
+		}
+
+		final Map<String, String> prefsStorage = this.prefsStorage;
+		final Map<String, AbstractPreferences> childrenStorage = this.childrenStorage;
+		final boolean removed = prefsStorage == null || childrenStorage == null;
+		if (!removed) {
+			// The local changes not yet flushed win over the loaded ones
+			for (final String key : this.dirtyKeys) {
+				final String localValue = prefsStorage.get(key);
+				if (localValue != null) {
+					prefs.put(key, localValue);
+				} else {
+					prefs.remove(key);
+				}
+			}
+			if (this.changeListeners.length > 0) {
+				for (final Map.Entry<String, String> entry : prefsStorage.entrySet()) {
+					if (!prefs.containsKey(entry.getKey())) {
+						this.storage.keyEvent(this, entry.getKey(), null);
+					}
+				}
+				for (final Map.Entry<String, String> entry : prefs.entrySet()) {
+					if (!entry.getValue().equals(prefsStorage.get(entry.getKey()))) {
+						this.storage.keyEvent(this, entry.getKey(), entry.getValue());
+					}
+				}
+			}
+			prefsStorage.keySet().retainAll(prefs.keySet());
+			prefsStorage.putAll(prefs);
+			this.keysChanged();
+		}
+
+		final int childCount = in.readInt();
+		final Map<String, Integer> previousLazyChildren = this.lazyChildren;
+		final Map<String, Integer> lazyChildren = new HashMap<String, Integer>();
+		final Set<String> names = new HashSet<String>(childCount * 2);
+		for (int k = 0; k < childCount; k++) {
+			final int lengthPosition = input.position();
+			final int end = lengthPosition + 4 + in.readInt();
+			final String name = in.readUTF();
+			names.add(name);
+			// A node removed locally and not yet flushed is not loaded again, even if created again since
+			final boolean skipped = removed || this.storage.removedLocally(this.childPath(name));
+			final StreamPreferences child = skipped ? null : (StreamPreferences) childrenStorage.get(name);
+			if (child != null) {
+				child.readImage(input);
+			} else if (!skipped) {
+				final boolean added = previousLazyChildren == null || !previousLazyChildren.containsKey(name);
+				if (added && this.nodeChangeListeners.length > 0) {
+					// Materialized to be notified
+					final StreamPreferences addedChild = new StreamPreferences(this, name);
+					addedChild.readImage(input);
+					this.putChild(name, addedChild);
+					this.storage.nodeEvent(this, addedChild);
+				} else {
+					lazyChildren.put(name, lengthPosition);
+				}
+			}
+			input.seek(end);
+		}
+		if (!removed) {
+			for (final Map.Entry<String, AbstractPreferences> entry : childrenStorage.entrySet()) {
+				if (!names.contains(entry.getKey()) && !this.storage.dirtyNodes.contains(entry.getValue())) {
+					this.detachChild(entry.getKey());
+				}
+			}
+		}
+
+		if (lazyChildren.isEmpty()) {
+			this.image = null;
+			this.lazyChildren = null;
+		} else {
+			this.image = input.image;
+			this.lazyChildren = lazyChildren;
+		}
+	}
+
+	/**
+	 * Apply a delta record to the tree. Called under the storage lock.
+	 */
+	private void readDelta(final DataInputStream in) throws IOException {
+		final int removedCount = in.readInt();
+		for (int k = 0; k < removedCount; k++) {
+			final String path = in.readUTF();
+			final int nameIndex = path.lastIndexOf('/');
+			final StreamPreferences parent = this.findNode(path.substring(0, nameIndex), false);
+			if (parent != null && parent.childrenStorage != null) {
+				final String name = path.substring(nameIndex + 1);
+				if (parent.lazyChildren != null && parent.lazyChildren.remove(name) != null
+						&& parent.lazyChildren.isEmpty()) {
+					parent.image = null;
+					parent.lazyChildren = null;
+				}
+				parent.detachChild(name);
+			}
+		}
+
+		final int nodeCount = in.readInt();
+		for (int k = 0; k < nodeCount; k++) {
+			final String path = in.readUTF();
+			final StreamPreferences node = this.storage.removedLocally(path) ? null : this.findNode(path, true);
+			final int keyCount = in.readInt();
+			for (int i = 0; i < keyCount; i++) {
+				final byte change = in.readByte();
+				final String key = in.readUTF();
+				if (node == null) {
+					// Removed locally
+					if (change == StreamPreferences.PUT_KEY) {
+						ValueEncoding.skipValue(in);
+					}
+				} else if (node.dirtyKeys.contains(key)) {
+					// The local change not yet flushed wins
+					if (change == StreamPreferences.PUT_KEY) {
+						ValueEncoding.skipValue(in);
+					}
+				} else if (change == StreamPreferences.PUT_KEY) {
+					final String value = ValueEncoding.readValue(in);
+					if (!value.equals(node.prefsStorage.put(key, value))) {
+						this.storage.keyEvent(node, key, value);
+					}
+				} else if (node.prefsStorage.remove(key) != null) {
+					this.storage.keyEvent(node, key, null);
+				}
+			}
+			if (node != null) {
+				node.keysChanged();
+			}
+		}
+	}
+
+	/**
+	 * Detach a child removed by a load. It is removed through AbstractPreferences once the storage lock is released,
+	 * see Storage.removeLoadedNodes(). Called under the storage lock.
+	 */
+	private void detachChild(final String name) {
+		final StreamPreferences child = (StreamPreferences) this.childrenStorage.remove(name);
+		if (child != null) {
+			// Its lazy children are dropped with it
+			child.image = null;
+			child.lazyChildren = null;
+			child.markRemovedByLoad();
+			this.storage.loadedRemovals.add(child);
+		}
+	}
+
+	private void markRemovedByLoad() {
+		this.removedByLoad = true;
+		for (final AbstractPreferences kid : this.childrenStorage.values()) {
+			((StreamPreferences) kid).markRemovedByLoad();
+		}
+	}
+
+	/**
+	 * @return the absolute path of a child of this node
+	 */
+	private String childPath(final String name) {
+		return this.parent() == null ? "/" + name : this.absolutePath() + "/" + name;
+	}
+
+	/**
+	 * Find a node of the tree, materializing it if needed. The nodes created are notified as added. Called under the
+	 * storage lock.
+	 * 
+	 * @param path
+	 *            the absolute path of the node
+	 * @param create
+	 *            create the missing nodes on the path ?
+	 * @return the node, null if it is missing and not created
+	 */
+	private StreamPreferences findNode(final String path, final boolean create) {
+		StreamPreferences node = this;
+		for (final String name : StringUtils.tokenizeToStringArray(path, "/")) {
+			StreamPreferences child = node.getChild(name, false);
+			if (child == null && create) {
+				child = node.getChild(name, true);
+				this.storage.nodeEvent(node, child);
+			}
+			if (child == null) {
+				return null;
+			}
+			node = child;
+		}
+		return node;
+	}
+
+	/**
+	 * Get a child, materializing it from its image if needed. Called under the storage lock.
+	 * 
+	 * @param create
+	 *            create the child if it does not exist ?
+	 * @return the child, null if it does not exist and is not created, or if this node was removed
+	 */
+	private StreamPreferences getChild(final String name, final boolean create) {
+		final Map<String, AbstractPreferences> children = this.childrenStorage;
+		if (children == null) {
+			return null;
+		}
+
+		StreamPreferences child = (StreamPreferences) children.get(name);
+		if (child == null && this.lazyChildren != null) {
+			final Integer lengthPosition = this.lazyChildren.remove(name);
+			if (lengthPosition != null) {
+				child = new StreamPreferences(this, name);
+				final ImageInput input = new ImageInput(this.image);
+				// Skip the length and the name
+				input.seek(lengthPosition + 4);
+				try {
+					input.data.readUTF();
+					child.readImage(input);
+				} catch (final IOException e) {
+					throw new IllegalStateException("Corrupted preferences image !", e);
+				}
+				this.putChild(name, child);
+
+				if (this.lazyChildren.isEmpty()) {
+					this.image = null;
+					this.lazyChildren = null;
+				}
+			}
+		}
+		if (child == null && create) {
+			child = new StreamPreferences(this, name);
+			this.putChild(name, child);
+		}
+
+		return child;
+	}
+
+	/**
+	 * Store a materialized child, creating the map of the children with the first one. Called under the storage lock.
+	 */
+	private void putChild(final String name, final StreamPreferences child) {
+		if (this.childrenStorage == StreamPreferences.NO_CHILDREN) {
+			this.childrenStorage = new ConcurrentHashMap<String, AbstractPreferences>();
+		}
+		this.childrenStorage.put(name, child);
+	}
+
+	/**
+	 * @return true if the map of the children of this node is created
+	 */
+	boolean hasChildrenMap() {
+		final Map<String, AbstractPreferences> children = this.childrenStorage;
+		return children != null && children != StreamPreferences.NO_CHILDREN;
+	}
+
+	/**
+	 * Write the type of a record and room for the rest of its header.
+	 */
+	private static void writeRecordHeader(final DataOutputStream out, final byte type) throws IOException {
+		out.writeByte(type);
+		out.writeInt(0);
+		out.writeInt(0);
+	}
+
+	/**
+	 * Listener of the batches applied by putAll(), notified once by node. The preference change listeners of the node
+	 * are notified of each key as well.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	public interface BatchChangeListener extends EventListener {
+
+		/**
+		 * Called once by batch changing keys of the node, in the event dispatch thread.
+		 */
+		void batchChange(BatchChangeEvent event);
+
+	}
+
+	/**
+	 * Changes of the keys of a node applied by one batch.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	public static final class BatchChangeEvent extends EventObject {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Map<String, String> changes;
+
+		private BatchChangeEvent(final StreamPreferences node, final Map<String, String> changes) {
+			super(node);
+			this.changes = Collections.unmodifiableMap(changes);
+		}
+
+		/**
+		 * @return the node changed
+		 */
+		public Preferences getNode() {
+			return (Preferences) this.getSource();
+		}
+
+		/**
+		 * @return the new values by key, null for the keys removed
+		 */
+		public Map<String, String> getChanges() {
+			return this.changes;
+		}
+
+	}
+
+	/**
+	 * Node added by a load. The nodes removed by a load are notified by AbstractPreferences, see removeLoadedNodes().
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private static final class LoadedNodeEvent extends NodeChangeEvent {
+
+		private static final long serialVersionUID = 1L;
+
+		private LoadedNodeEvent(final StreamPreferences parent, final StreamPreferences child) {
+			super(parent, child);
+		}
+
+	}
+
+	/**
+	 * Immutable copy of the keys of a node.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private static final class KeysSnapshot {
+
+		/** Version of the keys copied. */
+		private final int version;
+
+		private final Map<String, String> keys;
+
+		/** Values of the keys already decoded, by key then by DECODED_ type. */
+		private final Map<String, Object[]> decoded = new ConcurrentHashMap<String, Object[]>();
+
+		private KeysSnapshot(final int version, final Map<String, String> keys) {
+			this.version = version;
+			this.keys = keys;
+		}
+
+	}
+
+	/**
+	 * Buffer of a record, which can be patched once written.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private static final class RecordBuffer extends ByteArrayOutputStream {
+
+		private RecordBuffer(final int size) {
+			super(size);
+		}
+
+		private void patchInt(final int position, final int value) {
+			RecordLog.writeInt(this.buf, position, value);
+		}
+
+		/**
+		 * @return the internal array, valid until the next write
+		 */
+		private byte[] data() {
+			return this.buf;
+		}
+
+		private void truncate(final int size) {
+			this.count = size;
+		}
+
+	}
+
+	/**
+	 * Reader of an image, which can be positioned.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private static final class ImageInput extends ByteArrayInputStream {
+
+		private final byte[] image;
+
+		/** Not buffered : the position of the data is the position of the stream. */
+		private final DataInputStream data;
+
+		private ImageInput(final byte[] image) {
+			super(image);
+			this.image = image;
+			this.data = new DataInputStream(this);
+		}
+
+		private int position() {
+			return this.pos;
+		}
+
+		private void seek(final int position) {
+			this.pos = position;
+		}
+
+	}
+
+	/**
+	 * Streams and persistence state shared by all the nodes of a tree.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private static final class Storage {
+
+		private final StreamPreferences root;
+
+		private final RecordLog log;
+
+		/** Store of the keys of all the nodes, null if each node has its own map. */
+		private final FlatKeyStore keyStore;
+
+		/** Nodes with keys changed since the last flush. */
+		private final Set<StreamPreferences> dirtyNodes = Collections
+				.newSetFromMap(new ConcurrentHashMap<StreamPreferences, Boolean>());
+
+		/** Paths of the nodes removed since the last flush. */
+		private final Queue<String> removedPaths = new ConcurrentLinkedQueue<String>();
+
+		/** Nodes detached by a load, not yet removed through AbstractPreferences. */
+		private final Queue<StreamPreferences> loadedRemovals = new ConcurrentLinkedQueue<StreamPreferences>();
+
+		/** Size of the last image in the stream, 0 if none. */
+		private int imageSize = 0;
+
+		/** Is the stream loaded once ? Until then, imageSize does not tell if the stream holds an image. */
+		private boolean loaded = false;
+
+		/** Size and count of the deltas written after the last image. */
+		private long deltasSize = 0;
+
+		private int deltasCount = 0;
+
+		/** Executor of the write behind, null if not started. */
+		private volatile ScheduledExecutorService writeBehindExecutor;
+
+		private ScheduledFuture<?> periodicFlush;
+
+		private int maxPendingChanges;
+
+		/** Changes since the last flush, counted in write behind mode only. */
+		private final AtomicInteger pendingChanges = new AtomicInteger();
+
+		/** Is a flush submitted and not yet started ? */
+		private final AtomicBoolean flushSubmitted = new AtomicBoolean();
+
+		private final Runnable flushTask = new Runnable() {
+
+			@Override
+			public void run() {
+				Storage.this.flushSubmitted.set(false);
+				try {
+					Storage.this.flush();
+				} catch (final BackingStoreException e) {
+					StreamPreferences.LOG.error("Error during StreamPreferences write behind !", e);
+				}
+			}
+		};
+
+		/** Events of the changes loaded or applied by batch, not yet dispatched. */
+		private final List<EventObject> pendingEvents = new ArrayList<EventObject>();
+
+		/** Dispatcher of the events of the changes loaded or applied by batch, created on first use. */
+		private ExecutorService eventDispatcher;
+
+		private Storage(final StreamPreferences root, final RecordLog log, final boolean flatKeyStore) {
+			this.root = root;
+			this.log = log;
+			this.keyStore = flatKeyStore ? new FlatKeyStore() : null;
+		}
+
+		/**
+		 * @return the map of the keys of a new node
+		 */
+		private Map<String, String> newKeyMap() {
+			if (this.keyStore != null) {
+				return this.keyStore.newNodeMap();
+			}
+			return new ConcurrentHashMap<String, String>();
+		}
+
+		/**
+		 * Free the keys of a removed node, and its id in a shared key store.
+		 */
+		private void releaseKeyMap(final Map<String, String> keyMap) {
+			if (this.keyStore != null) {
+				this.keyStore.release(keyMap);
+			} else {
+				keyMap.clear();
+			}
+		}
+
+		/**
+		 * Get a child of a node, materializing or creating it if needed.
+		 */
+		private synchronized StreamPreferences child(final StreamPreferences node, final String name) {
+			final StreamPreferences child = node.getChild(name, false);
+			if (child != null) {
+				return child;
+			}
+
+			final StreamPreferences created = node.getChild(name, true);
+			// Notified as added by AbstractPreferences
+			created.newNode = true;
+			// A new node is written even without keys
+			this.nodeModified(created);
+			this.changed();
+			return created;
+		}
+
+		private synchronized String[] childrenNames(final StreamPreferences node) {
+			final Set<String> names = new HashSet<String>(node.childrenStorage.keySet());
+			if (node.lazyChildren != null) {
+				names.addAll(node.lazyChildren.keySet());
+			}
+			return StringUtils.toStringArray(names);
+		}
+
+		/**
+		 * Record the event of a key change loaded, if the node has listeners. Called under the storage lock.
+		 */
+		private void keyEvent(final StreamPreferences node, final String key, final String newValue) {
+			if (node.changeListeners.length > 0) {
+				this.pendingEvents.add(new PreferenceChangeEvent(node, key, newValue));
+			}
+		}
+
+		/**
+		 * Record the event of a node added by a load, if the parent has listeners. Called under the storage lock.
+		 */
+		private void nodeEvent(final StreamPreferences parent, final StreamPreferences child) {
+			if (parent.nodeChangeListeners.length > 0) {
+				this.pendingEvents.add(new LoadedNodeEvent(parent, child));
+			}
+		}
+
+		/**
+		 * Dispatch the pending events in background, as AbstractPreferences does. Called under the storage lock.
+		 */
+		private void dispatchEvents() {
+			if (this.pendingEvents.isEmpty()) {
+				return;
+			}
+
+			final EventObject[] events = this.pendingEvents.toArray(new EventObject[this.pendingEvents.size()]);
+			this.pendingEvents.clear();
+			if (this.eventDispatcher == null) {
+				this.eventDispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable, "StreamPreferences events");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			this.eventDispatcher.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					for (final EventObject event : events) {
+						final StreamPreferences source = (StreamPreferences) event.getSource();
+						try {
+							if (event instanceof PreferenceChangeEvent) {
+								for (final PreferenceChangeListener listener : source.changeListeners) {
+									listener.preferenceChange((PreferenceChangeEvent) event);
+								}
+							} else if (event instanceof BatchChangeEvent) {
+								for (final BatchChangeListener listener : source.batchChangeListeners) {
+									listener.batchChange((BatchChangeEvent) event);
+								}
+							} else {
+								for (final NodeChangeListener listener : source.nodeChangeListeners) {
+									listener.childAdded((LoadedNodeEvent) event);
+								}
+							}
+						} catch (final RuntimeException e) {
+							StreamPreferences.LOG.error("Error in a StreamPreferences listener !", e);
+						}
+					}
+				}
+			});
+		}
+
+		private synchronized void stopEventDispatch() {
+			if (this.eventDispatcher != null) {
+				this.eventDispatcher.shutdown();
+				this.eventDispatcher = null;
+			}
+		}
+
+		private void nodeModified(final StreamPreferences node) {
+			this.dirtyNodes.add(node);
+		}
+
+		private synchronized void nodeRemoved(final StreamPreferences parent, final StreamPreferences node) {
+			final Map<String, AbstractPreferences> siblings = parent.childrenStorage;
+			// A node removed by a load may be replaced already
+			if (siblings != null && siblings.get(node.name()) == node) {
+				siblings.remove(node.name());
+			}
+			node.childrenStorage = null;
+			this.dirtyNodes.remove(node);
+			if (!node.removedByLoad) {
+				this.removedPaths.add(node.absolutePath());
+				this.changed();
+			}
+		}
+
+		/**
+		 * Remove through AbstractPreferences the nodes detached by the loads, so that they leave its cache and their
+		 * removal is notified. Not called under the storage lock, as the node locks are taken.
+		 * 
+		 * @param lockedNode
+		 *            the node locked by the caller, null if none. Only its descendants are removed, to lock the nodes
+		 *            in the AbstractPreferences order
+		 */
+		private void removeLoadedNodes(final StreamPreferences lockedNode) throws BackingStoreException {
+			final String prefix = lockedNode == null ? null : lockedNode.childPath("");
+			final Iterator<StreamPreferences> removalIterator = this.loadedRemovals.iterator();
+			while (removalIterator.hasNext()) {
+				final StreamPreferences node = removalIterator.next();
+				if (prefix == null || node.absolutePath().startsWith(prefix)) {
+					removalIterator.remove();
+					try {
+						node.removeNode();
+					} catch (final IllegalStateException e) {
+						// Already removed
+					}
+				}
+			}
+		}
+
+		/**
+		 * Count a pending change. In write behind mode, submit a flush if enough changes are pending.
+		 */
+		private void changed() {
+			final ScheduledExecutorService executor = this.writeBehindExecutor;
+			if (executor != null && this.pendingChanges.incrementAndGet() >= this.maxPendingChanges
+					&& this.flushSubmitted.compareAndSet(false, true)) {
+				executor.execute(this.flushTask);
+			}
+		}
+
+		private synchronized void startWriteBehind(final ScheduledExecutorService executor, final long period,
+				final TimeUnit unit, final int maxPendingChanges) {
+			Assert.state(this.writeBehindExecutor == null, "Write behind already started !");
+
+			this.maxPendingChanges = maxPendingChanges;
+			this.periodicFlush = executor.scheduleWithFixedDelay(this.flushTask, period, period, unit);
+			this.writeBehindExecutor = executor;
+		}
+
+		private synchronized void stopWriteBehind() {
+			if (this.writeBehindExecutor != null) {
+				this.periodicFlush.cancel(false);
+				this.periodicFlush = null;
+				this.writeBehindExecutor = null;
+			}
+		}
+
+		/**
+		 * Append the changes of the tree since the last flush and make them durable. As flush() and sync() call the SPI
+		 * on each node, the changes are written once by call.
+		 */
+		private void flush() throws BackingStoreException {
+			this.write();
+			try {
+				// Even if nothing was written : the changes may be written by a concurrent flush not yet durable
+				this.log.sync();
+			} catch (final IOException e) {
+				throw new BackingStoreException(e);
+			}
+		}
+
+		/**
+		 * Append the changes of the tree since the last flush, as a delta or as a new image if the deltas grew too big.
+		 */
+		private synchronized void write() throws BackingStoreException {
+			if (this.dirtyNodes.isEmpty() && this.removedPaths.isEmpty()) {
+				return;
+			}
+			this.pendingChanges.set(0);
+			if (!this.loaded) {
+				// The image written would replace the records not yet read
+				this.load();
+			}
+
+			final boolean compact = this.imageSize == 0 || this.deltasCount >= StreamPreferences.MAX_DELTAS
+					|| this.deltasSize > Math.max(this.imageSize, StreamPreferences.MIN_COMPACTION_SIZE);
+			try {
+				final RecordBuffer buffer = new RecordBuffer(4096);
+				final DataOutputStream out = new DataOutputStream(buffer);
+				if (compact) {
+					// The image holds all the changes
+					this.removedPaths.clear();
+					for (final StreamPreferences node : this.drainDirtyNodes()) {
+						node.dirtyKeys.clear();
+					}
+					StreamPreferences.writeRecordHeader(out, RecordLog.IMAGE_RECORD);
+					this.root.writeImage(buffer, out);
+				} else {
+					StreamPreferences.writeRecordHeader(out, RecordLog.DELTA_RECORD);
+					this.writeDelta(out);
+				}
+				out.flush();
+
+				RecordLog.frame(buffer.data(), buffer.size());
+				this.log.append(buffer.data(), buffer.size());
+
+				this.recordWritten(compact, buffer.size() - RecordLog.HEADER_SIZE);
+			} catch (final IOException e) {
+				throw new BackingStoreException(e);
+			}
+		}
+
+		/**
+		 * Read all the records available and apply the last image found and the deltas following it, in a single
+		 * pass.
+		 */
+		private synchronized void load() throws BackingStoreException {
+			byte[] image = null;
+			final List<byte[]> deltas = new ArrayList<byte[]>();
+			final List<RecordLog.Record> records = new ArrayList<RecordLog.Record>();
+			try {
+				this.log.read(records);
+			} catch (final IOException e) {
+				throw new BackingStoreException(e);
+			}
+			for (final RecordLog.Record record : records) {
+				if (record.type == RecordLog.IMAGE_RECORD) {
+					image = record.payload;
+					deltas.clear();
+				} else if (record.type == RecordLog.DELTA_RECORD) {
+					deltas.add(record.payload);
+				} else {
+					throw new BackingStoreException("Unknown record type: " + record.type);
+				}
+			}
+
+			try {
+				if (image != null) {
+					final ImageInput input = new ImageInput(image);
+					// Skip the root name
+					input.data.readUTF();
+					this.root.readImage(input);
+					this.recordWritten(true, image.length);
+				}
+				for (final byte[] delta : deltas) {
+					this.root.readDelta(new DataInputStream(new ByteArrayInputStream(delta)));
+					this.recordWritten(false, delta.length);
+				}
+			} catch (final IOException e) {
+				throw new BackingStoreException(e);
+			} finally {
+				this.dispatchEvents();
+			}
+			this.loaded = true;
+		}
+
+		/**
+		 * @return true if the node at path, or one of its ancestors, was removed since the last flush
+		 */
+		private boolean removedLocally(final String path) {
+			for (final String removedPath : this.removedPaths) {
+				if (path.equals(removedPath) || path.startsWith(removedPath + "/")) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void writeDelta(final DataOutputStream out) throws IOException {
+			final List<String> removed = new ArrayList<String>();
+			String path;
+			while ((path = this.removedPaths.poll()) != null) {
+				removed.add(path);
+			}
+			out.writeInt(removed.size());
+			for (final String removedPath : removed) {
+				out.writeUTF(removedPath);
+			}
+
+			// Written after the removals : a node removed then created again is kept
+			final ByteArrayOutputStream nodesBuffer = new ByteArrayOutputStream(1024);
+			final DataOutputStream nodesOut = new DataOutputStream(nodesBuffer);
+			int nodeCount = 0;
+			for (final StreamPreferences node : this.drainDirtyNodes()) {
+				if (node.writeDelta(nodesOut)) {
+					nodeCount++;
+				}
+			}
+			nodesOut.flush();
+			out.writeInt(nodeCount);
+			nodesBuffer.writeTo(out);
+		}
+
+		private List<StreamPreferences> drainDirtyNodes() {
+			final List<StreamPreferences> nodes = new ArrayList<StreamPreferences>(this.dirtyNodes.size());
+			final Iterator<StreamPreferences> dirtyIterator = this.dirtyNodes.iterator();
+			while (dirtyIterator.hasNext()) {
+				nodes.add(dirtyIterator.next());
+				dirtyIterator.remove();
+			}
+			return nodes;
+		}
+
+		private void recordWritten(final boolean image, final int length) {
+			if (image) {
+				this.imageSize = length;
+				this.deltasSize = 0;
+				this.deltasCount = 0;
+			} else {
+				this.deltasSize += length;
+				this.deltasCount++;
+			}
+		}
+
 	}
 
 }
@@ -16,31 +16,137 @@
 
 package fr.mby.utils.common.prefs;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 import java.util.prefs.PreferencesFactory;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.util.Assert;
 
 /**
+ * Factory of StreamPreferences. The keys of large trees can be kept in one compact table for the whole tree.
+ * 
+ * Built with an executor, the factory flushes the changes in background : put and remove never write, and many changes
+ * are coalesced in one write. Closing the factory stops the background flushes and flushes the pending changes.
+ * 
+ * Built with a file, the preferences are persisted in a crash safe journal with atomic checkpoints. The files can be
+ * watched to follow the changes written by another process.
+ * 
  * @author Maxime Bossard - 2013
  * 
  */
-public class StreamPreferencesFactory implements PreferencesFactory {
+public class StreamPreferencesFactory implements PreferencesFactory, Closeable {
+
+	/** Logger. */
+	private static final Logger LOG = LogManager.getLogger(StreamPreferencesFactory.class);
 
 	private final StreamPreferences instance;
 
+	/** The checkpoint file, null if not built with a file. */
+	private final File file;
+
+	private WatchService watchService;
+
 	/**
 	 * 
 	 */
 	public StreamPreferencesFactory(final InputStream inputStream, final OutputStream outputStream) {
+		this(inputStream, outputStream, false);
+	}
+
+	/**
+	 * @param flatKeyStore
+	 *            store the keys of all the nodes in one compact table, instead of one map by node
+	 */
+	public StreamPreferencesFactory(final InputStream inputStream, final OutputStream outputStream,
+			final boolean flatKeyStore) {
 		super();
 
 		Assert.notNull(inputStream, "No InputStream provided !");
 		Assert.notNull(outputStream, "No OutputStream provided !");
 
-		this.instance = new StreamPreferences(inputStream, outputStream);
+		this.instance = new StreamPreferences(inputStream, outputStream, flatKeyStore);
+		this.file = null;
+	}
+
+	/**
+	 * Build a factory persisting the preferences in a crash safe journal : a checkpoint file and a journal file next to
+	 * it. The preferences already persisted are recovered and loaded by the constructor.
+	 * 
+	 * @param file
+	 *            the checkpoint file
+	 * @param flatKeyStore
+	 *            store the keys of all the nodes in one compact table, instead of one map by node
+	 * @throws IOException
+	 *             if the files cannot be opened, recovered or loaded
+	 */
+	public StreamPreferencesFactory(final File file, final boolean flatKeyStore) throws IOException {
+		super();
+
+		Assert.notNull(file, "No File provided !");
+
+		this.instance = new StreamPreferences(new FileRecordLog(file), flatKeyStore);
+		this.file = file;
+		try {
+			this.instance.reload();
+		} catch (final BackingStoreException e) {
+			throw new IOException("Unable to load the preferences !", e);
+		}
+	}
+
+	/**
+	 * Build a factory flushing the changes in background.
+	 * 
+	 * @param executor
+	 *            the executor running the flushes
+	 * @param period
+	 *            the delay between two periodic flushes
+	 * @param unit
+	 *            the period unit
+	 * @param maxPendingChanges
+	 *            number of changes triggering a flush before the end of the period
+	 */
+	public StreamPreferencesFactory(final InputStream inputStream, final OutputStream outputStream,
+			final ScheduledExecutorService executor, final long period, final TimeUnit unit,
+			final int maxPendingChanges) {
+		this(inputStream, outputStream, false, executor, period, unit, maxPendingChanges);
+	}
+
+	/**
+	 * Build a factory flushing the changes in background.
+	 * 
+	 * @param flatKeyStore
+	 *            store the keys of all the nodes in one compact table, instead of one map by node
+	 * @param executor
+	 *            the executor running the flushes
+	 * @param period
+	 *            the delay between two periodic flushes
+	 * @param unit
+	 *            the period unit
+	 * @param maxPendingChanges
+	 *            number of changes triggering a flush before the end of the period
+	 */
+	public StreamPreferencesFactory(final InputStream inputStream, final OutputStream outputStream,
+			final boolean flatKeyStore, final ScheduledExecutorService executor, final long period,
+			final TimeUnit unit, final int maxPendingChanges) {
+		this(inputStream, outputStream, flatKeyStore);
+
+		this.instance.startWriteBehind(executor, period, unit, maxPendingChanges);
 	}
 
 	@Override
@@ -53,4 +159,75 @@ public class StreamPreferencesFactory implements PreferencesFactory {
 		return this.instance;
 	}
 
+	/**
+	 * Watch the files of the preferences, and reload the records appended by another process as soon as they are
+	 * written. Only the new records are read, and the changes are notified to the preference and node change listeners.
+	 * The factory must be built with a file.
+	 * 
+	 * @throws IOException
+	 *             if the directory of the files cannot be watched
+	 */
+	public synchronized void watch() throws IOException {
+		Assert.state(this.file != null, "Only the preferences built with a file can be watched !");
+		Assert.state(this.watchService == null, "Preferences already watched !");
+
+		final Path directory = this.file.getAbsoluteFile().getParentFile().toPath();
+		final Path checkpointName = Paths.get(this.file.getName());
+		final Path journalName = Paths.get(this.file.getName() + FileRecordLog.JOURNAL_SUFFIX);
+
+		final WatchService watcher = directory.getFileSystem().newWatchService();
+		directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		this.watchService = watcher;
+
+		final Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final WatchKey key = watcher.take();
+						boolean changed = false;
+						for (final WatchEvent<?> event : key.pollEvents()) {
+							changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+									|| checkpointName.equals(event.context()) || journalName.equals(event.context());
+						}
+						key.reset();
+						if (changed) {
+							StreamPreferencesFactory.this.reload();
+						}
+					}
+				} catch (final ClosedWatchServiceException e) {
+					// Factory closed
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "StreamPreferences watcher " + this.file.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (this.watchService != null) {
+				this.watchService.close();
+				this.watchService = null;
+			}
+		}
+		try {
+			this.instance.close();
+		} catch (final BackingStoreException e) {
+			throw new IOException("Unable to flush the preferences !", e);
+		}
+	}
+
+	private void reload() {
+		try {
+			this.instance.reload();
+		} catch (final BackingStoreException e) {
+			StreamPreferencesFactory.LOG.error("Unable to reload the preferences !", e);
+		}
+	}
+
 }
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.mby.utils.common.prefs;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.springframework.util.Assert;
+
+/**
+ * Log of records in a pair of streams : the records are written to the OutputStream and read from the InputStream. An
+ * incomplete record at the end of the InputStream is left to the next read, using mark and reset.
+ * 
+ * @author Maxime Bossard - 2013
+ * 
+ */
+class StreamRecordLog extends RecordLog {
+
+	private final InputStream inputStream;
+
+	private final OutputStream outputStream;
+
+	StreamRecordLog(final InputStream inputStream, final OutputStream outputStream) {
+		Assert.notNull(inputStream, "No InputStream provided !");
+		Assert.notNull(outputStream, "No OutputStream provided !");
+		Assert.isTrue(inputStream.markSupported(), "The provided InputStream does not support mark !");
+
+		this.inputStream = inputStream;
+		this.outputStream = outputStream;
+	}
+
+	@Override
+	void append(final byte[] record, final int length) throws IOException {
+		this.outputStream.write(record, 0, length);
+		this.outputStream.flush();
+	}
+
+	@Override
+	void sync() {
+		// Flushed on append
+	}
+
+	@Override
+	void read(final List<Record> records) throws IOException {
+		final DataInputStream in = new DataInputStream(this.inputStream);
+		while (true) {
+			this.inputStream.mark(Integer.MAX_VALUE);
+			final int type = in.read();
+			if (type < 0) {
+				return;
+			}
+
+			final byte[] payload;
+			final int checksum;
+			try {
+				final int length = in.readInt();
+				checksum = in.readInt();
+				payload = new byte[length];
+				in.readFully(payload);
+			} catch (final EOFException e) {
+				this.inputStream.reset();
+				return;
+			}
+
+			if (checksum != RecordLog.checksum(payload, 0, payload.length)) {
+				throw new IOException("Corrupted preferences record !");
+			}
+			records.add(new Record((byte) type, payload));
+		}
+	}
+
+	@Override
+	public void close() {
+		// The streams are owned by the caller
+	}
+
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.mby.utils.common.prefs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compact encoding of the values persisted by StreamPreferences. The values are strings, as in the Preferences API, but
+ * the canonical forms of the numbers and of the Base64 byte arrays written by putInt(), putLong() and putByteArray()
+ * are persisted in binary. Decoding gives back the exact same string.
+ *
+ * Base64 is the encoding of the byte arrays by AbstractPreferences : the RFC 2045 alphabet, padded, without line breaks.
+ *
+ * @author Maxime Bossard - 2013
+ *
+ */
+final class ValueEncoding {
+
+	private static final byte STRING_VALUE = 0;
+
+	private static final byte INT_VALUE = 1;
+
+	private static final byte LONG_VALUE = 2;
+
+	private static final byte BYTES_VALUE = 3;
+
+	/** Longest string of a long : "-9223372036854775808". */
+	private static final int MAX_LONG_LENGTH = 20;
+
+	/** Shorter Base64 strings are not worth the decoding. */
+	private static final int MIN_BASE64_LENGTH = 16;
+
+	private static final char[] BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.toCharArray();
+
+	private static final byte[] BASE64_VALUES = new byte[128];
+
+	static {
+		Arrays.fill(ValueEncoding.BASE64_VALUES, (byte) -1);
+		for (int k = 0; k < ValueEncoding.BASE64_CHARS.length; k++) {
+			ValueEncoding.BASE64_VALUES[ValueEncoding.BASE64_CHARS[k]] = (byte) k;
+		}
+	}
+
+	private ValueEncoding() {
+		super();
+	}
+
+	/**
+	 * Write a value in its most compact form.
+	 */
+	static void writeValue(final DataOutputStream out, final String value) throws IOException {
+		final int length = value.length();
+		if (length <= ValueEncoding.MAX_LONG_LENGTH && ValueEncoding.isDecimal(value)) {
+			try {
+				final long number = Long.parseLong(value);
+				// "007" or "-0" would not be given back
+				if (Long.toString(number).equals(value)) {
+					if (number == (int) number) {
+						out.writeByte(ValueEncoding.INT_VALUE);
+						out.writeInt((int) number);
+						return;
+					}
+					out.writeByte(ValueEncoding.LONG_VALUE);
+					out.writeLong(number);
+					return;
+				}
+			} catch (final NumberFormatException e) {
+				// Overflow : written as a string
+			}
+		} else if (length >= ValueEncoding.MIN_BASE64_LENGTH) {
+			final byte[] bytes = ValueEncoding.decodeBase64(value);
+			if (bytes != null && ValueEncoding.encodeBase64(bytes).equals(value)) {
+				out.writeByte(ValueEncoding.BYTES_VALUE);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+				return;
+			}
+		}
+
+		out.writeByte(ValueEncoding.STRING_VALUE);
+		out.writeUTF(value);
+	}
+
+	/**
+	 * Read a value written by writeValue().
+	 */
+	static String readValue(final DataInputStream in) throws IOException {
+		final byte type = in.readByte();
+		switch (type) {
+			case STRING_VALUE :
+				return in.readUTF();
+			case INT_VALUE :
+				return Integer.toString(in.readInt());
+			case LONG_VALUE :
+				return Long.toString(in.readLong());
+			case BYTES_VALUE :
+				final byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				return ValueEncoding.encodeBase64(bytes);
+			default :
+				throw new IOException("Unknown value type: " + type);
+		}
+	}
+
+	/**
+	 * Skip a value written by writeValue().
+	 */
+	static void skipValue(final DataInputStream in) throws IOException {
+		final byte type = in.readByte();
+		switch (type) {
+			case STRING_VALUE :
+				in.skipBytes(in.readUnsignedShort());
+				break;
+			case INT_VALUE :
+				in.skipBytes(4);
+				break;
+			case LONG_VALUE :
+				in.skipBytes(8);
+				break;
+			case BYTES_VALUE :
+				in.skipBytes(in.readInt());
+				break;
+			default :
+				throw new IOException("Unknown value type: " + type);
+		}
+	}
+
+	/**
+	 * @return the Base64 encoding of bytes, as AbstractPreferences.putByteArray() does
+	 */
+	static String encodeBase64(final byte[] bytes) {
+		final char[] chars = new char[(bytes.length + 2) / 3 * 4];
+		int position = 0;
+		for (int k = 0; k < bytes.length; k += 3) {
+			final int remaining = bytes.length - k;
+			final int group = (bytes[k] & 0xFF) << 16 | (remaining > 1 ? (bytes[k + 1] & 0xFF) << 8 : 0)
+					| (remaining > 2 ? bytes[k + 2] & 0xFF : 0);
+			chars[position++] = ValueEncoding.BASE64_CHARS[group >>> 18];
+			chars[position++] = ValueEncoding.BASE64_CHARS[group >>> 12 & 0x3F];
+			chars[position++] = remaining > 1 ? ValueEncoding.BASE64_CHARS[group >>> 6 & 0x3F] : '=';
+			chars[position++] = remaining > 2 ? ValueEncoding.BASE64_CHARS[group & 0x3F] : '=';
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @return the bytes encoded in Base64, null if the string is not valid Base64
+	 */
+	static byte[] decodeBase64(final String value) {
+		final int length = value.length();
+		if (length % 4 != 0) {
+			return null;
+		}
+		int padding = 0;
+		if (length > 0 && value.charAt(length - 1) == '=') {
+			padding = value.charAt(length - 2) == '=' ? 2 : 1;
+		}
+
+		final byte[] bytes = new byte[length / 4 * 3 - padding];
+		int position = 0;
+		for (int k = 0; k < length; k += 4) {
+			int group = 0;
+			for (int i = 0; i < 4; i++) {
+				final char c = value.charAt(k + i);
+				int sextet = 0;
+				if (c != '=' || k + i < length - padding) {
+					sextet = c < 128 ? ValueEncoding.BASE64_VALUES[c] : -1;
+					if (sextet < 0) {
+						return null;
+					}
+				}
+				group = group << 6 | sextet;
+			}
+			bytes[position++] = (byte) (group >>> 16);
+			if (position < bytes.length) {
+				bytes[position++] = (byte) (group >>> 8);
+			}
+			if (position < bytes.length) {
+				bytes[position++] = (byte) group;
+			}
+		}
+		return bytes;
+	}
+
+	private static boolean isDecimal(final String value) {
+		final int length = value.length();
+		if (length == 0) {
+			return false;
+		}
+		for (int k = value.charAt(0) == '-' ? 1 : 0; k < length; k++) {
+			final char c = value.charAt(k);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return length > 1 || value.charAt(0) != '-';
+	}
+
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.mby.utils.common.random;
+
+/**
+ * Keyed bijection of the integers of an even number of bits, built as a balanced Feistel network. Distinct values are
+ * always permuted to distinct values, which look random without knowing the key.
+ * 
+ * @author Maxime Bossard - 2013
+ * 
+ */
+final class FeistelPermutation {
+
+	private static final int ROUNDS = 6;
+
+	private static final int MAX_BITS = 62;
+
+	private final int halfBits;
+
+	private final long halfMask;
+
+	private final long[] roundKeys = new long[FeistelPermutation.ROUNDS];
+
+	/**
+	 * @param bits
+	 *            the number of bits of the values, even
+	 * @param key
+	 *            the key of the permutation
+	 */
+	FeistelPermutation(final int bits, final long key) {
+		if (bits < 2 || bits > FeistelPermutation.MAX_BITS || bits % 2 != 0) {
+			throw new IllegalArgumentException("Bad permutation bits: " + bits);
+		}
+
+		this.halfBits = bits / 2;
+		this.halfMask = (1L << this.halfBits) - 1;
+		long seed = key;
+		for (int round = 0; round < FeistelPermutation.ROUNDS; round++) {
+			seed += 0x9E3779B97F4A7C15L;
+			this.roundKeys[round] = FeistelPermutation.mix(seed);
+		}
+	}
+
+	/**
+	 * @return the number of values permuted
+	 */
+	long size() {
+		return 1L << 2 * this.halfBits;
+	}
+
+	/**
+	 * @param value
+	 *            a value lower than size()
+	 * @return the permuted value, lower than size()
+	 */
+	long permute(final long value) {
+		long left = value >>> this.halfBits;
+		long right = value & this.halfMask;
+		for (int round = 0; round < FeistelPermutation.ROUNDS; round++) {
+			final long next = left ^ FeistelPermutation.mix(right ^ this.roundKeys[round]) & this.halfMask;
+			left = right;
+			right = next;
+		}
+		return left << this.halfBits | right;
+	}
+
+	/**
+	 * Finalizer of SplitMix64 : a strong mixing of the bits of a long.
+	 */
+	static long mix(final long value) {
+		long z = value;
+		z = (z ^ z >>> 30) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ z >>> 27) * 0x94D049BB133111EBL;
+		return z ^ z >>> 31;
+	}
+
+}
@@ -16,12 +16,30 @@
 
 package fr.mby.utils.common.random;
 
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Random;
+import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Generator of unique random strings. Thread safe without lock : each thread draws from its own random source in its
+ * own buffer.
+ * 
+ * By default the uniqueness is checked in a concurrent set of all the strings generated, growing without bound. A
+ * permuted generator needs no memory : it renders a counter permuted by a keyed bijection, so the strings are unique by
+ * construction and look random. The last 10 characters hold the permuted counter, the others are random. A filtered
+ * generator only remembers the recent strings, in bounded memory, with a small rate of false rejections. A
+ * partitioned generator is permuted in the slice of the space of its node, so the strings are unique across a cluster.
+ * 
+ * A time ordered generator renders the time first, as ULID, so its strings sort by creation time.
+ * 
+ * The characters are drawn 6 bits at a time from random longs. Batches of strings can be written in arrays or
+ * buffers, without allocating a String for each.
+ * 
  * @author Maxime Bossard - 2013
  * 
  */
@@ -43,32 +61,415 @@ public class RandomString {
 		RandomString.symbols[63] = '-';
 	}
 
-	private final Set<String> generatedStrings = Collections.synchronizedSet(new HashSet<String>(1024));
+	/** The same symbols, sorted in ASCII order. */
+	private static final char[] sortedSymbols = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz"
+			.toCharArray();
+
+	/** Characters of the time of a time ordered string : 48 bits of milliseconds. */
+	private static final int TIME_CHARS = 8;
+
+	/** Characters of the sequence of a time ordered string : 16 bits. */
+	private static final int SEQUENCE_CHARS = 3;
+
+	private static final int SEQUENCE_BITS = 16;
+
+	private static final int MIN_TIME_ORDERED_LENGTH = RandomString.TIME_CHARS + RandomString.SEQUENCE_CHARS + 1;
+
+	/** Max bits of a permuted counter : 10 characters. */
+	private static final int MAX_PERMUTED_BITS = 60;
+
+	/** Strings generated at once by the batches in bytes, bounding the buffer of each thread. */
+	private static final int BATCH_CHUNK = 1024;
 
-	private final Random random = new Random();
+	/** Strings already generated, null in the other modes. */
+	private final Set<String> generatedStrings;
+
+	/** Strings recently generated, null if not filtered. */
+	private final RotatingBloomFilter recentStrings;
+
+	/** Permutation of the counter, null if not permuted. */
+	private final FeistelPermutation permutation;
+
+	/** Node part of the permuted values, 0 if not partitioned. */
+	private final long counterBase;
+
+	/** Number of values of the permuted counter. */
+	private final long counterLimit;
+
+	/** Counter of a permuted generator, or time and sequence of the last time ordered string. */
+	private final AtomicLong counter = new AtomicLong();
+
+	private final boolean timeOrdered;
+
+	private final int length;
+
+	/** Buffer of the batches in bytes of each thread, holding one chunk of strings. */
+	private final ThreadLocal<char[]> batchBuf = new ThreadLocal<char[]>() {
+
+		@Override
+		protected char[] initialValue() {
+			return new char[RandomString.BATCH_CHUNK * RandomString.this.length];
+		}
+	};
 
-	private final char[] buf;
+	/** Buffer of each thread. */
+	private final ThreadLocal<char[]> buf = new ThreadLocal<char[]>() {
+
+		@Override
+		protected char[] initialValue() {
+			return new char[RandomString.this.length];
+		}
+	};
 
 	public RandomString(final int length) {
+		this(length, null, 0, 0, null, false);
+	}
+
+	private RandomString(final int length, final FeistelPermutation permutation, final long counterBase,
+			final long counterLimit, final RotatingBloomFilter recentStrings, final boolean timeOrdered) {
 		if (length < 1) {
 			throw new IllegalArgumentException("length < 1: " + length);
 		}
-		this.buf = new char[length];
+		this.length = length;
+		this.permutation = permutation;
+		this.counterBase = counterBase;
+		this.counterLimit = counterLimit;
+		this.recentStrings = recentStrings;
+		this.timeOrdered = timeOrdered;
+		this.generatedStrings = permutation == null && recentStrings == null && !timeOrdered ? Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>(1024)) : null;
+	}
+
+	/**
+	 * Build a generator of unique strings in constant memory, with a random key.
+	 * 
+	 * @param length
+	 *            the length of the strings
+	 */
+	public static RandomString permuted(final int length) {
+		return RandomString.permuted(length, new SecureRandom().nextLong());
+	}
+
+	/**
+	 * Build a generator of unique strings in constant memory. It can generate 64^length strings, up to 2^60.
+	 * 
+	 * @param length
+	 *            the length of the strings
+	 * @param key
+	 *            the key of the permutation : generators with the same key generate the same sequence
+	 */
+	public static RandomString permuted(final int length, final long key) {
+		if (length < 1) {
+			throw new IllegalArgumentException("length < 1: " + length);
+		}
+		final int bits = Math.min(length * 6, RandomString.MAX_PERMUTED_BITS);
+		final FeistelPermutation permutation = new FeistelPermutation(bits, key);
+		return new RandomString(length, permutation, 0, permutation.size(), null, false);
+	}
+
+	/**
+	 * Build a generator of unique strings across a cluster, without coordination. Each node owns a slice of the space :
+	 * it permutes its node id followed by its counter, with the key shared by the cluster. As the permutation is a
+	 * bijection, the strings of nodes with distinct ids never collide. The strings are unique by construction and look
+	 * random, the node id cannot be read from them without the key.
+	 * 
+	 * Each node can generate 2^(6 * length - nodeBits) strings, 6 * length being capped at 60.
+	 * 
+	 * @param length
+	 *            the length of the strings
+	 * @param nodeId
+	 *            the id of this node, unique in the cluster
+	 * @param nodeBits
+	 *            the number of bits of the node ids, the same for the cluster
+	 * @param key
+	 *            the key of the permutation, the same for the cluster
+	 */
+	public static RandomString partitioned(final int length, final int nodeId, final int nodeBits, final long key) {
+		if (length < 1) {
+			throw new IllegalArgumentException("length < 1: " + length);
+		}
+		final int bits = Math.min(length * 6, RandomString.MAX_PERMUTED_BITS);
+		if (nodeBits < 1 || nodeBits >= bits || nodeBits > 31) {
+			throw new IllegalArgumentException("Bad node bits: " + nodeBits);
+		}
+		if (nodeId < 0 || nodeId >= 1L << nodeBits) {
+			throw new IllegalArgumentException("Node id out of " + nodeBits + " bits: " + nodeId);
+		}
+		final int counterBits = bits - nodeBits;
+		return new RandomString(length, new FeistelPermutation(bits, key), (long) nodeId << counterBits,
+				1L << counterBits, null, false);
+	}
+
+	/**
+	 * Build a generator of random strings unique among the recent ones, in bounded memory. The strings generated are
+	 * remembered in rotating Bloom filters : a string is never generated twice among at least the last
+	 * capacity strings, the capacity growing with the memory and shrinking with the false positive rate. A false
+	 * positive only makes the generator draw another string.
+	 * 
+	 * @param length
+	 *            the length of the strings
+	 * @param maxBytes
+	 *            the memory of the filters
+	 * @param falsePositiveRate
+	 *            the probability of rejecting a string never generated
+	 */
+	public static RandomString filtered(final int length, final int maxBytes, final double falsePositiveRate) {
+		return new RandomString(length, null, 0, 0, new RotatingBloomFilter(maxBytes, falsePositiveRate), false);
+	}
+
+	/**
+	 * Build a generator of strings sorted by creation time, as ULID, to be appended at the end of the database indexes
+	 * when used as keys. A string is made of 8 characters of the time in milliseconds, 3 characters of a sequence
+	 * started at random each millisecond, then random characters. The symbols are the usual ones, in ASCII order : the
+	 * strings sort by time in a binary collation.
+	 * 
+	 * The strings of a generator are unique and strictly increasing without memory. The strings of generators sharing a
+	 * millisecond are told apart by their random characters.
+	 * 
+	 * @param length
+	 *            the length of the strings, at least 12 : 16 or more are advised
+	 */
+	public static RandomString timeOrdered(final int length) {
+		if (length < RandomString.MIN_TIME_ORDERED_LENGTH) {
+			throw new IllegalArgumentException("length < " + RandomString.MIN_TIME_ORDERED_LENGTH + ": " + length);
+		}
+		return new RandomString(length, null, 0, 0, null, true);
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             if a permuted generator generated all its strings
+	 */
+	public String nextString() throws IllegalStateException {
+		final char[] chars = this.buf.get();
+		this.nextStrings(chars, 0, 1, ThreadLocalRandom.current());
+		return new String(chars);
+	}
+
+	/**
+	 * Fill an array with strings, one after the other, without allocation in the permuted and filtered modes.
+	 * 
+	 * @param dest
+	 *            the array to fill with count * length chars
+	 * @param offset
+	 *            the position of the first string in the array
+	 * @param count
+	 *            the number of strings
+	 * @throws IllegalStateException
+	 *             if a permuted generator generated all its strings
+	 */
+	public void nextStrings(final char[] dest, final int offset, final int count) throws IllegalStateException {
+		RandomString.checkRange(dest.length, offset, count, this.length);
+		this.nextStrings(dest, offset, count, ThreadLocalRandom.current());
+	}
+
+	/**
+	 * Fill an array with strings in ASCII, one after the other.
+	 * 
+	 * @param dest
+	 *            the array to fill with count * length bytes
+	 * @param offset
+	 *            the position of the first string in the array
+	 * @param count
+	 *            the number of strings
+	 * @throws IllegalStateException
+	 *             if a permuted generator generated all its strings
+	 */
+	public void nextStrings(final byte[] dest, final int offset, final int count) throws IllegalStateException {
+		RandomString.checkRange(dest.length, offset, count, this.length);
+		final char[] chars = this.batchBuf.get();
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		int position = offset;
+		for (int done = 0; done < count; done += RandomString.BATCH_CHUNK) {
+			final int chunkLength = Math.min(RandomString.BATCH_CHUNK, count - done) * this.length;
+			this.nextStrings(chars, 0, chunkLength / this.length, random);
+			for (int idx = 0; idx < chunkLength; ++idx) {
+				dest[position++] = (byte) chars[idx];
+			}
+		}
 	}
 
-	public synchronized String nextString() {
-		for (int idx = 0; idx < this.buf.length; ++idx) {
-			this.buf[idx] = RandomString.symbols[this.random.nextInt(RandomString.symbols.length)];
+	/**
+	 * Put strings in ASCII in a buffer, one after the other, from its position.
+	 * 
+	 * @param dest
+	 *            the buffer to fill with count * length bytes
+	 * @param count
+	 *            the number of strings
+	 * @throws IllegalStateException
+	 *             if a permuted generator generated all its strings
+	 */
+	public void nextStrings(final ByteBuffer dest, final int count) throws IllegalStateException {
+		RandomString.checkRange(dest.remaining(), 0, count, this.length);
+		final char[] chars = this.batchBuf.get();
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int done = 0; done < count; done += RandomString.BATCH_CHUNK) {
+			final int chunkLength = Math.min(RandomString.BATCH_CHUNK, count - done) * this.length;
+			this.nextStrings(chars, 0, chunkLength / this.length, random);
+			for (int idx = 0; idx < chunkLength; ++idx) {
+				dest.put((byte) chars[idx]);
+			}
 		}
+	}
+
+	/**
+	 * @return an endless iterator of strings, generated on demand
+	 */
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+
+			@Override
+			public String next() {
+				return RandomString.this.nextString();
+			}
 
-		String generated = new String(this.buf);
-		while (this.generatedStrings.contains(generated)) {
-			// If String already generated => generate a new String
-			generated = this.nextString();
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException("Strings cannot be removed !");
+			}
+		};
+	}
+
+	/**
+	 * Generate strings in an array. The random characters of all the strings are drawn at once, then the strings
+	 * already generated are drawn again.
+	 */
+	private void nextStrings(final char[] dest, final int offset, final int count, final ThreadLocalRandom random) {
+		if (this.permutation != null) {
+			// One reservation for the batch
+			final long first = this.reserveCounters(count);
+			final int randomLength = Math.max(0, this.length - RandomString.MAX_PERMUTED_BITS / 6);
+			for (int idx = 0; idx < count; ++idx) {
+				final int position = offset + idx * this.length;
+				RandomString.randomChars(dest, position, randomLength, random, RandomString.symbols);
+				RandomString.renderBits(dest, position + randomLength, this.length - randomLength,
+						this.permutation.permute(this.counterBase + first + idx), RandomString.symbols);
+			}
+			return;
 		}
 
-		this.generatedStrings.add(generated);
+		if (this.timeOrdered) {
+			final long first = this.reserveSequences(count, random);
+			final int timeLength = RandomString.TIME_CHARS + RandomString.SEQUENCE_CHARS;
+			for (int idx = 0; idx < count; ++idx) {
+				final int position = offset + idx * this.length;
+				final long sequence = first + idx;
+				RandomString.renderBits(dest, position, RandomString.TIME_CHARS,
+						sequence >>> RandomString.SEQUENCE_BITS, RandomString.sortedSymbols);
+				RandomString.renderBits(dest, position + RandomString.TIME_CHARS, RandomString.SEQUENCE_CHARS,
+						sequence & (1 << RandomString.SEQUENCE_BITS) - 1, RandomString.sortedSymbols);
+				RandomString.randomChars(dest, position + timeLength, this.length - timeLength, random,
+						RandomString.sortedSymbols);
+			}
+			return;
+		}
 
-		return generated;
+		RandomString.randomChars(dest, offset, count * this.length, random, RandomString.symbols);
+		for (int idx = 0; idx < count; ++idx) {
+			final int position = offset + idx * this.length;
+			while (!this.isNew(dest, position)) {
+				// If String already generated => generate a new String
+				RandomString.randomChars(dest, position, this.length, random, RandomString.symbols);
+			}
+		}
 	}
+
+	/**
+	 * Reserve count values of the permuted counter. A batch rejected does not use up the values left.
+	 * 
+	 * @return the first value
+	 * @throws IllegalStateException
+	 *             if less than count values are left
+	 */
+	private long reserveCounters(final int count) throws IllegalStateException {
+		while (true) {
+			final long first = this.counter.get();
+			if (count > this.counterLimit - first) {
+				throw new IllegalStateException("All the unique strings of length " + this.length
+						+ " were generated !");
+			}
+			if (this.counter.compareAndSet(first, first + count)) {
+				return first;
+			}
+		}
+	}
+
+	/**
+	 * Reserve the time and sequences of count time ordered strings, after the last ones. The sequence of a new
+	 * millisecond starts at random in its lower half, and an overflowing sequence borrows the next millisecond.
+	 * 
+	 * @return the time and sequence of the first string
+	 */
+	private long reserveSequences(final int count, final ThreadLocalRandom random) {
+		while (true) {
+			final long last = this.counter.get();
+			final long now = System.currentTimeMillis();
+			final long first;
+			if (now > last >>> RandomString.SEQUENCE_BITS) {
+				first = now << RandomString.SEQUENCE_BITS | random.nextInt(1 << RandomString.SEQUENCE_BITS - 1);
+			} else {
+				first = last + 1;
+			}
+			if (this.counter.compareAndSet(last, first + count - 1)) {
+				return first;
+			}
+		}
+	}
+
+	/**
+	 * Remember a string generated.
+	 * 
+	 * @return false if the string was already generated
+	 */
+	private boolean isNew(final char[] chars, final int offset) {
+		if (this.recentStrings != null) {
+			return this.recentStrings.add(chars, offset, this.length);
+		}
+		return this.generatedStrings.add(new String(chars, offset, this.length));
+	}
+
+	/**
+	 * Draw random characters, 6 bits of a random long by character.
+	 */
+	private static void randomChars(final char[] dest, final int offset, final int count,
+			final ThreadLocalRandom random, final char[] table) {
+		long bits = 0;
+		int available = 0;
+		for (int idx = offset; idx < offset + count; ++idx) {
+			if (available < 6) {
+				bits = random.nextLong();
+				available = 64;
+			}
+			dest[idx] = table[(int) (bits & 63)];
+			bits >>>= 6;
+			available -= 6;
+		}
+	}
+
+	/**
+	 * Write the lower bits of a value, 6 by character, most significant first.
+	 */
+	private static void renderBits(final char[] dest, final int offset, final int count, final long value,
+			final char[] table) {
+		long bits = value;
+		for (int idx = offset + count - 1; idx >= offset; --idx) {
+			dest[idx] = table[(int) (bits & 63)];
+			bits >>>= 6;
+		}
+	}
+
+	private static void checkRange(final int destLength, final int offset, final int count, final int length) {
+		if (count < 0) {
+			throw new IllegalArgumentException("count < 0: " + count);
+		}
+		if (offset < 0 || (long) count * length > destLength - offset) {
+			throw new IndexOutOfBoundsException("No room for " + count + " strings at " + offset);
+		}
+	}
+
 }
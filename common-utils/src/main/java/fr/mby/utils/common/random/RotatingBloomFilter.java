@@ -0,0 +1,180 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.mby.utils.common.random;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Set of the strings recently added, in bounded memory : two Bloom filters, the current one and the previous one. Once
+ * the current filter holds its capacity, it becomes the previous one and a new filter is started. So at least the last
+ * capacity strings added, and at most twice as many, are remembered.
+ * 
+ * A string never added may be reported as present, with the false positive rate of the filters. Thread safe without
+ * lock, except for the rotation.
+ * 
+ * @author Maxime Bossard - 2013
+ * 
+ */
+final class RotatingBloomFilter {
+
+	private static final double LN2 = Math.log(2);
+
+	/** Number of bits of each filter, up to 2^33 for the largest filters. */
+	private final long bitCount;
+
+	private final int hashCount;
+
+	/** Number of strings added to a filter before its rotation. */
+	private final int capacity;
+
+	/** The current and the previous filters, replaced together by a rotation. */
+	private volatile Generations generations;
+
+	/**
+	 * @param maxBytes
+	 *            the memory of the two filters
+	 * @param falsePositiveRate
+	 *            the probability of reporting as present a string never added
+	 */
+	RotatingBloomFilter(final int maxBytes, final double falsePositiveRate) {
+		if (maxBytes < 16) {
+			throw new IllegalArgumentException("Bad filter size: " + maxBytes);
+		}
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("Bad false positive rate: " + falsePositiveRate);
+		}
+
+		// Two filters of whole longs
+		final int wordCount = maxBytes / 16;
+		this.bitCount = wordCount * 64L;
+		// A string is looked up in both filters
+		final double filterRate = falsePositiveRate / 2;
+		this.hashCount = Math.max(1, (int) Math.round(-Math.log(filterRate) / RotatingBloomFilter.LN2));
+		final double bestCapacity = this.bitCount * RotatingBloomFilter.LN2 * RotatingBloomFilter.LN2
+				/ -Math.log(filterRate);
+		// Counted in an int : a smaller capacity only lowers the false positive rate
+		this.capacity = (int) Math.max(1, Math.min(bestCapacity, Integer.MAX_VALUE));
+
+		this.generations = new Generations(new Generation(wordCount), new Generation(wordCount));
+	}
+
+	/**
+	 * @return the number of last strings added which are always remembered
+	 */
+	int capacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * Add a string, read in an array.
+	 * 
+	 * @return false if the string was probably added before
+	 */
+	boolean add(final char[] chars, final int offset, final int length) {
+		long hash = 0;
+		for (int k = offset; k < offset + length; k++) {
+			hash = hash * 31 + chars[k];
+		}
+		final long hash1 = FeistelPermutation.mix(hash);
+		final long hash2 = FeistelPermutation.mix(hash1) | 1;
+
+		final Generations generations = this.generations;
+		final Generation current = generations.current;
+		final Generation previous = generations.previous;
+		boolean present = true;
+		boolean previousPresent = true;
+		for (int k = 0; k < this.hashCount; k++) {
+			final long bit = ((hash1 + k * hash2) >>> 1) % this.bitCount;
+			present &= current.set(bit);
+			previousPresent = previousPresent && previous.get(bit);
+		}
+		if (present || previousPresent) {
+			return false;
+		}
+
+		if (current.count.incrementAndGet() == this.capacity) {
+			this.rotate(current);
+		}
+		return true;
+	}
+
+	private synchronized void rotate(final Generation full) {
+		if (this.generations.current == full) {
+			this.generations = new Generations(new Generation((int) (this.bitCount / 64)), full);
+		}
+	}
+
+	/**
+	 * The filters in use, read together : a string added during a rotation is not looked up in the wrong pair.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private static final class Generations {
+
+		private final Generation current;
+
+		private final Generation previous;
+
+		private Generations(final Generation current, final Generation previous) {
+			this.current = current;
+			this.previous = previous;
+		}
+
+	}
+
+	/**
+	 * One Bloom filter.
+	 * 
+	 * @author Maxime Bossard - 2013
+	 * 
+	 */
+	private static final class Generation {
+
+		private final AtomicLongArray words;
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		private Generation(final int wordCount) {
+			this.words = new AtomicLongArray(wordCount);
+		}
+
+		private boolean get(final long bit) {
+			return (this.words.get((int) (bit >>> 6)) & 1L << bit) != 0;
+		}
+
+		/**
+		 * @return true if the bit was already set
+		 */
+		private boolean set(final long bit) {
+			final int index = (int) (bit >>> 6);
+			final long mask = 1L << bit;
+			while (true) {
+				final long word = this.words.get(index);
+				if ((word & mask) != 0) {
+					return true;
+				}
+				if (this.words.compareAndSet(index, word, word | mask)) {
+					return false;
+				}
+			}
+		}
+
+	}
+
+}
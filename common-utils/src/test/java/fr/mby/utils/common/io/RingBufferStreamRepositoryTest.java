@@ -0,0 +1,137 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.mby.utils.common.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import fr.mby.utils.common.io.RingBufferStreamRepository.WaitStrategy;
+
+/**
+ * @author Maxime Bossard - 2013
+ * 
+ */
+@RunWith(BlockJUnit4ClassRunner.class)
+public class RingBufferStreamRepositoryTest {
+
+	private static final int STREAM_SIZE = 10000000;
+
+	@Test
+	public void testSingleThread() throws Exception {
+		final RingBufferStreamRepository repo = new RingBufferStreamRepository(8, WaitStrategy.BLOCKING, 0);
+
+		final InputStream inputStream = repo.getInputStream();
+		final OutputStream outputStream = repo.getOutputStream();
+
+		Assert.assertEquals("Bad capacity !", 8, repo.getCapacity());
+
+		outputStream.write(new byte[] {'t', 'e', 's', 't'});
+		Assert.assertEquals("Bad available bytes !", 4, inputStream.available());
+		Assert.assertEquals("Bad first byte !", 't', inputStream.read());
+
+		// Wrap around the end of the ring
+		outputStream.write(new byte[] {'k', 'i', 'k', 'o', 'u'});
+		outputStream.close();
+
+		Assert.assertEquals("Bad stream content !", "estkikou", IOUtils.toString(inputStream));
+	}
+
+	@Test
+	public void testBlockingStrategy() throws Exception {
+		this.transfer(WaitStrategy.BLOCKING, 0);
+	}
+
+	@Test
+	public void testSpinningStrategy() throws Exception {
+		this.transfer(WaitStrategy.SPINNING, 0);
+	}
+
+	@Test
+	public void testParkingStrategyWithBatch() throws Exception {
+		this.transfer(WaitStrategy.PARKING, 512);
+	}
+
+	@Test(expected = IOException.class)
+	public void testConsumerClosed() throws Exception {
+		final RingBufferStreamRepository repo = new RingBufferStreamRepository(4, WaitStrategy.PARKING, 0);
+
+		repo.getInputStream().close();
+		repo.getOutputStream().write(new byte[8]);
+	}
+
+	@Test(expected = IOException.class)
+	public void testConsumerClosedWithFreeSpace() throws Exception {
+		final RingBufferStreamRepository repo = new RingBufferStreamRepository(4, WaitStrategy.PARKING, 0);
+
+		repo.getInputStream().close();
+		// Fails even if the ring is not full
+		repo.getOutputStream().write(1);
+	}
+
+	/**
+	 * Stream bytes from a producer thread to the current thread and check the content.
+	 */
+	protected void transfer(final WaitStrategy waitStrategy, final int batchSize) throws Exception {
+		final RingBufferStreamRepository repo = new RingBufferStreamRepository(4096, waitStrategy, batchSize);
+		final AtomicReference<Throwable> producerError = new AtomicReference<Throwable>();
+
+		final Thread producer = new Thread() {
+
+			@Override
+			public void run() {
+				final byte[] chunk = new byte[1000];
+				try {
+					final OutputStream outputStream = repo.getOutputStream();
+					for (int k = 0; k < RingBufferStreamRepositoryTest.STREAM_SIZE; k += chunk.length) {
+						for (int i = 0; i < chunk.length; i++) {
+							chunk[i] = (byte) (k + i);
+						}
+						outputStream.write(chunk);
+					}
+					outputStream.close();
+				} catch (final Throwable e) {
+					producerError.set(e);
+				}
+			}
+		};
+		producer.start();
+
+		final InputStream inputStream = repo.getInputStream();
+		final byte[] buffer = new byte[777];
+		long position = 0;
+		int read;
+		while ((read = inputStream.read(buffer)) != -1) {
+			for (int i = 0; i < read; i++) {
+				Assert.assertEquals("Bad byte read !", (byte) (position + i), buffer[i]);
+			}
+			position += read;
+		}
+		producer.join();
+
+		Assert.assertNull("Error in producer thread !", producerError.get());
+		Assert.assertEquals("Bad stream size !", RingBufferStreamRepositoryTest.STREAM_SIZE, position);
+	}
+
+}
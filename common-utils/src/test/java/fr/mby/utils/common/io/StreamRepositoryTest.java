@@ -16,8 +16,17 @@
 
 package fr.mby.utils.common.io;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
@@ -92,6 +101,354 @@ public class StreamRepositoryTest {
 				IOUtils.toString(inputStream));
 	}
 
+	@Test
+	public void testIndependentReaders() throws Exception {
+
+		final StreamRepository repo = new StreamRepository();
+
+		final OutputStream outputStream = repo.getOutputStream();
+
+		outputStream.write(StreamRepositoryTest.BYTE_WORD_1);
+		outputStream.flush();
+
+		final InputStream reader1 = repo.openInputStream();
+		final InputStream reader2 = repo.openInputStream();
+
+		Assert.assertEquals("Reader 1 should read the first letter of Word 1 !", 't', reader1.read());
+
+		outputStream.write(StreamRepositoryTest.BYTE_WORD_2);
+		outputStream.flush();
+
+		Assert.assertEquals("Reader 1 should read the end of Word 1 !", "est", IOUtils.toString(reader1));
+		Assert.assertEquals("Reader 2 should read Word 1 !", new String(StreamRepositoryTest.BYTE_WORD_1),
+				IOUtils.toString(reader2));
+
+		final InputStream reader3 = repo.openInputStream();
+		repo.getInputStream().reset();
+		outputStream.write(StreamRepositoryTest.BYTE_WORD_3);
+		outputStream.flush();
+
+		final byte[] expected = ArrayUtils.addAll(StreamRepositoryTest.BYTE_WORD_1, StreamRepositoryTest.BYTE_WORD_2);
+		Assert.assertEquals("Reader 3 should not see the reset !", new String(expected), IOUtils.toString(reader3));
+		Assert.assertEquals("Reader 4 should read Word 3 !", new String(StreamRepositoryTest.BYTE_WORD_3),
+				IOUtils.toString(repo.openInputStream()));
+	}
+
+	@Test
+	public void loadTestIndependentReaders() throws Exception {
+
+		final StreamRepository repo = new StreamRepository();
+
+		final OutputStream outputStream = repo.getOutputStream();
+
+		new LoadRunner<StreamRepositoryTest, Void>(500, 10, this) {
+
+			@Override
+			protected Void loadTest(final StreamRepositoryTest unitTest) throws Exception {
+				final String read = IOUtils.toString(repo.openInputStream());
+				Assert.assertEquals("Reader should only see whole commits !", 0, read.length() % 4);
+
+				synchronized (outputStream) {
+					outputStream.write(StreamRepositoryTest.BYTE_WORD_1);
+					outputStream.flush();
+				}
+
+				return null;
+			}
+
+		};
+
+		Assert.assertEquals("Bad committed content size !", 2000, IOUtils.toString(repo.openInputStream()).length());
+	}
+
+	@Test
+	public void testPipeReader() throws Exception {
+
+		final StreamRepository repo = new StreamRepository();
+
+		final OutputStream outputStream = repo.getOutputStream();
+		final InputStream pipe = repo.openPipeInputStream();
+
+		final Thread writer = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					for (final byte[] word : new byte[][] {StreamRepositoryTest.BYTE_WORD_1,
+							StreamRepositoryTest.BYTE_WORD_2, StreamRepositoryTest.BYTE_WORD_3}) {
+						Thread.sleep(20);
+						outputStream.write(word);
+						outputStream.flush();
+					}
+					repo.close();
+				} catch (final Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		writer.start();
+
+		// The pipe blocks until the repository is closed
+		Assert.assertEquals("Pipe should read all the commits !", "testkikouplop", IOUtils.toString(pipe));
+		writer.join();
+	}
+
+	@Test(expected = InterruptedIOException.class)
+	public void testPipeReaderTimeout() throws Exception {
+
+		final StreamRepository repo = new StreamRepository();
+
+		final OutputStream outputStream = repo.getOutputStream();
+		final InputStream pipe = repo.openPipeInputStream(50, TimeUnit.MILLISECONDS);
+
+		outputStream.write(StreamRepositoryTest.BYTE_WORD_1);
+		outputStream.flush();
+
+		Assert.assertEquals("Pipe should read Word 1 !", 4, pipe.read(new byte[10]));
+
+		pipe.read();
+	}
+
+	@Test
+	public void testConcurrentSharedStreamReads() throws Exception {
+
+		final StreamRepository repo = new StreamRepository(8);
+
+		final OutputStream outputStream = repo.getOutputStream();
+		final InputStream inputStream = repo.getInputStream();
+
+		final int commits = 200;
+		final byte[] commit = "0123456789".getBytes();
+		final int[] readCounts = new int[4];
+		final Thread[] readers = new Thread[readCounts.length];
+		for (int k = 0; k < readers.length; k++) {
+			final int index = k;
+			readers[k] = new Thread() {
+
+				@Override
+				public void run() {
+					final byte[] buffer = new byte[3];
+					try {
+						int read;
+						do {
+							read = inputStream.read(buffer, 0, buffer.length);
+							if (read > 0) {
+								readCounts[index] += read;
+							}
+						} while (read >= 0 || repo.getVersion() < commits);
+					} catch (final IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			};
+			readers[k].start();
+		}
+
+		for (int k = 0; k < commits; k++) {
+			outputStream.write(commit);
+			outputStream.flush();
+		}
+		for (final Thread reader : readers) {
+			reader.join();
+		}
+
+		// Each flush rewinds the shared stream : the readers together read at least the whole last commit
+		int total = 0;
+		for (final int readCount : readCounts) {
+			total += readCount;
+		}
+		Assert.assertTrue("Readers should have read the whole content !", total >= commits * commit.length);
+		Assert.assertEquals("Shared stream should be at the end !", -1, inputStream.read());
+	}
+
+	@Test
+	public void testVersionedCommits() throws Exception {
+
+		final StreamRepository repo = new StreamRepository();
+
+		final OutputStream outputStream = repo.getOutputStream();
+
+		Assert.assertEquals("No commit expected !", 0, repo.getVersion());
+
+		outputStream.write(StreamRepositoryTest.BYTE_WORD_1);
+		outputStream.flush();
+		outputStream.write(StreamRepositoryTest.BYTE_WORD_2);
+		outputStream.flush();
+		outputStream.flush();
+		outputStream.write(StreamRepositoryTest.BYTE_WORD_3);
+		outputStream.flush();
+
+		Assert.assertEquals("Bad last commit !", 4, repo.getVersion());
+		Assert.assertEquals("Bad content at commit 0 !", "", IOUtils.toString(repo.openInputStream(0)));
+		Assert.assertEquals("Bad content at commit 1 !", "test", IOUtils.toString(repo.openInputStream(1)));
+		Assert.assertEquals("Bad content at commit 3 !", "testkikou", IOUtils.toString(repo.openInputStream(3)));
+
+		final InputStream beforeTruncate = repo.openInputStream(2);
+		repo.truncate(1);
+
+		Assert.assertEquals("Bad oldest commit !", 1, repo.getOldestVersion());
+		Assert.assertEquals("Bad content after truncate !", "kikouplop", IOUtils.toString(repo.openInputStream()));
+		Assert.assertEquals("Bad content at commit 2 after truncate !", "kikou",
+				IOUtils.toString(repo.openInputStream(2)));
+		Assert.assertEquals("Truncate should not impact opened readers !", "testkikou",
+				IOUtils.toString(beforeTruncate));
+
+		try {
+			repo.openInputStream(0);
+			Assert.fail("Commit 0 should be truncated !");
+		} catch (final IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+
+		final StreamRepository repo = new StreamRepository();
+
+		final OutputStream outputStream = repo.getOutputStream();
+		final StringBuilder expected = new StringBuilder();
+		for (int k = 0; k < 1000; k++) {
+			outputStream.write(StreamRepositoryTest.BYTE_WORD_2);
+			outputStream.write(String.valueOf(k).getBytes());
+			outputStream.flush();
+			expected.append("kikou").append(k);
+		}
+		final InputStream pipe = repo.openPipeInputStream();
+		Assert.assertEquals("Bad pipe skip !", 10, pipe.skip(10));
+
+		final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		try {
+			repo.scheduleCompaction(executor, 1, TimeUnit.MILLISECONDS);
+			for (int k = 0; k < 500; k++) {
+				repo.truncate(repo.getOldestVersion() + 1);
+				expected.delete(0, 5 + String.valueOf(k).length());
+				outputStream.write(StreamRepositoryTest.BYTE_WORD_3);
+				outputStream.flush();
+				expected.append("plop");
+				Thread.sleep(0, 100);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		repo.compact();
+
+		Assert.assertEquals("Bad content after compaction !", expected.toString(),
+				IOUtils.toString(repo.openInputStream()));
+		Assert.assertEquals("Bad content at commit after compaction !", expected.substring(0, expected.length() - 4),
+				IOUtils.toString(repo.openInputStream(repo.getVersion() - 1)));
+		Assert.assertEquals("Pipe should restart at the truncated position !", expected.toString(),
+				this.readAvailable(pipe));
+	}
+
+	@Test
+	public void testPooledRepositories() throws Exception {
+
+		final BufferPool pool = new BufferPool(16, 1024, 8);
+
+		for (int k = 0; k < 100; k++) {
+			final StreamRepository repo = new StreamRepository(16, pool);
+			final OutputStream outputStream = repo.getOutputStream();
+
+			// Words written across several chunks
+			for (int i = 0; i < 5; i++) {
+				outputStream.write(StreamRepositoryTest.BYTE_WORD_2);
+				outputStream.write(StreamRepositoryTest.BYTE_WORD_3);
+			}
+			outputStream.flush();
+
+			final InputStream reader = repo.openInputStream();
+			Assert.assertEquals("Bad pooled content !", "kikouplopkikouplopkikouplopkikouplopkikouplop",
+					IOUtils.toString(reader));
+			reader.close();
+
+			repo.getInputStream().reset();
+			outputStream.write(StreamRepositoryTest.BYTE_WORD_1);
+			outputStream.flush();
+			Assert.assertEquals("Bad pooled content after reset !", "test", IOUtils.toString(repo.getInputStream()));
+
+			repo.close();
+		}
+
+		Assert.assertTrue("Chunks should be recycled by the pool !", pool.getAllocationCount() <= 8);
+	}
+
+	@Test
+	public void testCompressedRepository() throws Exception {
+
+		final StreamRepository repo = new StreamRepository(4096, new BufferPool(), true);
+
+		final OutputStream outputStream = repo.getOutputStream();
+		final InputStream pipe = repo.openPipeInputStream();
+		final StringBuilder expected = new StringBuilder();
+		for (int k = 0; k < 10000; k++) {
+			final String line = "line " + k % 100 + " kikou plop\n";
+			outputStream.write(line.getBytes());
+			expected.append(line);
+			if (k % 7 == 0) {
+				outputStream.flush();
+			}
+		}
+		outputStream.flush();
+		repo.compact();
+
+		final InputStream reader = repo.openInputStream();
+		Assert.assertEquals("Bad compressed content !", expected.toString(), IOUtils.toString(reader));
+		reader.close();
+
+		// Random access
+		final InputStream randomReader = repo.openInputStream(repo.getVersion() - 1);
+		final int position = expected.length() / 3;
+		Assert.assertEquals("Bad skip in compressed content !", position, randomReader.skip(position));
+		final byte[] read = new byte[100];
+		Assert.assertEquals("Bad read in compressed content !", 100, randomReader.read(read));
+		Assert.assertEquals("Bad random access in compressed content !", expected.substring(position, position + 100),
+				new String(read));
+		randomReader.close();
+
+		repo.close();
+		Assert.assertEquals("Pipe should read the compressed content !", expected.toString(), IOUtils.toString(pipe));
+		pipe.close();
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+
+		final StreamRepositoryStats stats = new StreamRepositoryStats();
+		final StreamRepository repo = new StreamRepository(4, null, false, stats);
+
+		final OutputStream outputStream = repo.getOutputStream();
+		outputStream.write(StreamRepositoryTest.BYTE_WORD_1);
+		outputStream.flush();
+		outputStream.write(StreamRepositoryTest.BYTE_WORD_2);
+		outputStream.flush();
+
+		Assert.assertEquals("Bad written bytes count !", 9, stats.getBytesWritten());
+		Assert.assertEquals("Bad commit count !", 2, stats.getCommitCount());
+		Assert.assertEquals("Bad buffered bytes !", 9, stats.getBufferedBytes());
+		Assert.assertEquals("Bad chunk count !", 3, stats.getChunkCount());
+		Assert.assertTrue("Bad commit latency !", stats.getCommitLatencyMaxNanos() > 0);
+		Assert.assertTrue("Bad commit latency percentile !",
+				stats.getCommitLatency99thNanos() <= stats.getCommitLatencyMaxNanos());
+
+		final InputStream reader = repo.openInputStream();
+		Assert.assertEquals("Bad content !", "testkikou", IOUtils.toString(reader));
+		reader.close();
+		Assert.assertEquals("Bad read bytes count !", 9, stats.getBytesRead());
+
+		repo.truncate(1);
+		Assert.assertEquals("Bad buffered bytes after truncation !", 5, stats.getBufferedBytes());
+		Assert.assertEquals("Bad chunk count after truncation !", 2, stats.getChunkCount());
+
+		final ObjectName name = stats.register("testMetrics");
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			Assert.assertEquals("Bad commit count through JMX !", 2L, server.getAttribute(name, "CommitCount"));
+		} finally {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}
+	}
+
 	/** Not thread safe ! */
 	@Test
 	@Ignore
@@ -120,4 +477,13 @@ public class StreamRepositoryTest {
 
 		};
 	}
+
+	private String readAvailable(final InputStream inputStream) throws Exception {
+		final byte[] bytes = new byte[inputStream.available()];
+		int position = 0;
+		while (position < bytes.length) {
+			position += inputStream.read(bytes, position, bytes.length - position);
+		}
+		return new String(bytes);
+	}
 }
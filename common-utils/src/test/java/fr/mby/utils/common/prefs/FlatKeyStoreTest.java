@@ -0,0 +1,78 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.mby.utils.common.prefs;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+/**
+ * Test the FlatKeyStore shared by the nodes of a tree.
+ * 
+ * @author Maxime Bossard - 2013
+ * 
+ */
+@RunWith(BlockJUnit4ClassRunner.class)
+public class FlatKeyStoreTest {
+
+	@Test
+	public void testReleasedNodes() throws Exception {
+
+		final FlatKeyStore store = new FlatKeyStore();
+		final Map<String, String> kept = store.newNodeMap();
+		kept.put("shared", "kept");
+
+		// Nodes created and removed in turn : the ids and the key names are freed
+		for (int k = 0; k < 10000; k++) {
+			final Map<String, String> node = store.newNodeMap();
+			node.put("shared", "value" + k);
+			node.put("key" + k, "value" + k);
+			Assert.assertEquals("Bad value !", "value" + k, node.get("key" + k));
+			store.release(node);
+		}
+		Assert.assertEquals("Node ids should be reused !", 1, store.nodeCount());
+		Assert.assertEquals("Key names should be dropped !", 1, store.keyNameCount());
+		Assert.assertEquals("Bad kept value !", "kept", kept.get("shared"));
+
+		kept.remove("shared");
+		Assert.assertEquals("Key names should be dropped !", 0, store.keyNameCount());
+		Assert.assertEquals("No key should be left !", 0, store.size());
+	}
+
+	@Test
+	public void testReleasedView() throws Exception {
+
+		final FlatKeyStore store = new FlatKeyStore();
+		final Map<String, String> removed = store.newNodeMap();
+		removed.put("key", "removed");
+		store.release(removed);
+
+		// The id is reused : the released view must not see nor change the new node
+		final Map<String, String> created = store.newNodeMap();
+		Assert.assertTrue("New node should be empty !", created.isEmpty());
+		created.put("key", "created");
+		Assert.assertNull("Released view should be empty !", removed.get("key"));
+		removed.put("key", "ignored");
+		removed.clear();
+		Assert.assertEquals("Bad value !", "created", created.get("key"));
+		Assert.assertEquals("Bad size !", 1, store.size());
+	}
+
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.mby.utils.common.prefs;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.prefs.Preferences;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+/**
+ * Test the MappedPreferences shared through a mapped file. Each factory maps the file as another process would.
+ * 
+ * @author Maxime Bossard - 2013
+ * 
+ */
+@RunWith(BlockJUnit4ClassRunner.class)
+public class MappedPreferencesTest {
+
+	private File directory;
+
+	private File file;
+
+	@Before
+	public void createDirectory() throws Exception {
+		this.directory = Files.createTempDirectory("prefs").toFile();
+		this.file = new File(this.directory, "prefs.map");
+	}
+
+	@After
+	public void deleteDirectory() throws Exception {
+		for (final File child : this.directory.listFiles()) {
+			child.delete();
+		}
+		this.directory.delete();
+	}
+
+	@Test
+	public void testSharedStore() throws Exception {
+
+		final MappedPreferencesFactory writer = new MappedPreferencesFactory(this.file);
+		final MappedPreferencesFactory reader = new MappedPreferencesFactory(this.file);
+		try {
+			final MappedPreferences writerPrefs = (MappedPreferences) writer.systemRoot();
+			final MappedPreferences readerPrefs = (MappedPreferences) reader.systemRoot();
+
+			final long version = readerPrefs.version();
+			writerPrefs.node("node1").put("key1", "value 1 1");
+			writerPrefs.node("node1").putInt("key2", 12);
+			writerPrefs.node("node2/node21").put("key1", "value 21 1");
+
+			// Seen at once, without sync
+			Assert.assertTrue("Version should change !", readerPrefs.version() != version);
+			Assert.assertEquals("Bad shared value !", "value 1 1", readerPrefs.node("node1").get("key1", null));
+			Assert.assertEquals("Bad shared value !", 12, readerPrefs.node("node1").getInt("key2", 0));
+			Assert.assertEquals("Bad shared value !", "value 21 1", readerPrefs.node("node2/node21").get("key1", null));
+			final String[] children = readerPrefs.childrenNames();
+			Arrays.sort(children);
+			Assert.assertArrayEquals("Bad children names !", new String[] {"node1", "node2"}, children);
+			final String[] keys = readerPrefs.node("node1").keys();
+			Arrays.sort(keys);
+			Assert.assertArrayEquals("Bad keys !", new String[] {"key1", "key2"}, keys);
+
+			writerPrefs.node("node1").remove("key1");
+			Assert.assertNull("Key should be removed !", readerPrefs.node("node1").get("key1", null));
+			writerPrefs.node("node2").removeNode();
+			Assert.assertFalse("Node should be removed !", readerPrefs.nodeExists("node2"));
+			writerPrefs.flush();
+		} finally {
+			reader.close();
+			writer.close();
+		}
+
+		final MappedPreferencesFactory reopened = new MappedPreferencesFactory(this.file);
+		try {
+			final Preferences prefs = reopened.systemRoot();
+			Assert.assertEquals("Bad persisted value !", 12, prefs.node("node1").getInt("key2", 0));
+			Assert.assertFalse("Node should be removed !", prefs.nodeExists("node2"));
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void testGrowth() throws Exception {
+
+		final MappedPreferencesFactory writer = new MappedPreferencesFactory(this.file, 4096);
+		final MappedPreferencesFactory reader = new MappedPreferencesFactory(this.file, 4096);
+		try {
+			final Preferences writerPrefs = writer.systemRoot();
+			final Preferences readerPrefs = reader.systemRoot();
+			for (int k = 0; k < 10000; k++) {
+				writerPrefs.node("node" + k % 10).put("key" + k, "value" + k);
+			}
+			// Many changes of the same key are compacted
+			for (int k = 0; k < 10000; k++) {
+				writerPrefs.node("node0").put("counter", "value" + k);
+			}
+
+			Assert.assertTrue("The file should have grown !", this.file.length() > 4096);
+			for (int k = 0; k < 10000; k += 99) {
+				Assert.assertEquals("Bad value !", "value" + k, readerPrefs.node("node" + k % 10).get("key" + k, null));
+			}
+			Assert.assertEquals("Bad value !", "value9999", readerPrefs.node("node0").get("counter", null));
+			Assert.assertEquals("Bad keys count !", 1000, readerPrefs.node("node3").keys().length);
+		} finally {
+			reader.close();
+			writer.close();
+		}
+	}
+
+	@Test
+	public void testDeadWriter() throws Exception {
+
+		final MappedPreferencesFactory factory = new MappedPreferencesFactory(this.file, 4096);
+		try {
+			final MappedPreferences prefs = (MappedPreferences) factory.systemRoot();
+			prefs.node("node1").put("key1", "value 1 1");
+
+			// A writer killed while writing leaves the version odd
+			this.killWriter();
+			Assert.assertEquals("Bad value after a dead writer !", "value 1 1", prefs.node("node1").get("key1", null));
+			Assert.assertEquals("Version should be even !", 0, prefs.version() & 1);
+
+			this.killWriter();
+			prefs.node("node1").put("key2", "value 1 2");
+			Assert.assertEquals("Version should be even !", 0, prefs.version() & 1);
+		} finally {
+			factory.close();
+		}
+
+		this.killWriter();
+		final MappedPreferencesFactory reopened = new MappedPreferencesFactory(this.file);
+		try {
+			final MappedPreferences prefs = (MappedPreferences) reopened.systemRoot();
+			Assert.assertEquals("Version should be even !", 0, prefs.version() & 1);
+			Assert.assertEquals("Bad value after a dead writer !", "value 1 1", prefs.node("node1").get("key1", null));
+			Assert.assertEquals("Bad value after a dead writer !", "value 1 2", prefs.node("node1").get("key2", null));
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentReads() throws Exception {
+
+		final MappedPreferencesFactory writer = new MappedPreferencesFactory(this.file, 8192);
+		final MappedPreferencesFactory reader = new MappedPreferencesFactory(this.file, 8192);
+		try {
+			final Preferences writerNode = writer.systemRoot().node("node");
+			final Preferences readerNode = reader.systemRoot().node("node");
+			writerNode.put("key", "0 0");
+
+			final AtomicBoolean done = new AtomicBoolean();
+			final AtomicReference<String> torn = new AtomicReference<String>();
+			final Thread readerThread = new Thread() {
+
+				@Override
+				public void run() {
+					while (!done.get()) {
+						// Both halves of the value are written together
+						final String value = readerNode.get("key", null);
+						final String[] halves = value.split(" ");
+						if (!halves[0].equals(halves[1])) {
+							torn.set(value);
+						}
+					}
+				}
+			};
+			readerThread.start();
+
+			for (int k = 0; k < 20000; k++) {
+				writerNode.put("key", k + " " + k);
+			}
+			done.set(true);
+			readerThread.join();
+
+			Assert.assertNull("Torn value read !", torn.get());
+			Assert.assertEquals("Bad last value !", "19999 19999", readerNode.get("key", null));
+		} finally {
+			reader.close();
+			writer.close();
+		}
+	}
+
+	/**
+	 * Make the version of the file odd, as a writer killed in the middle of a write.
+	 */
+	private void killWriter() throws Exception {
+		final RandomAccessFile mapped = new RandomAccessFile(this.file, "rw");
+		try {
+			mapped.seek(8);
+			final long version = mapped.readLong();
+			mapped.seek(8);
+			mapped.writeLong(version | 1);
+		} finally {
+			mapped.close();
+		}
+	}
+
+}
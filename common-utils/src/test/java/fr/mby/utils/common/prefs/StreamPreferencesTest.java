@@ -16,6 +16,24 @@
 
 package fr.mby.utils.common.prefs;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.NodeChangeEvent;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
 import java.util.prefs.Preferences;
 
 import org.junit.Assert;
@@ -78,4 +96,692 @@ public class StreamPreferencesTest {
 
 	}
 
+	@Test
+	public void testFlushAndSync() throws Exception {
+
+		final Preferences prefs = this.buildPreferences();
+
+		final Preferences node1 = prefs.node("node1");
+		node1.put("node1 key1", "value 1 1");
+		final Preferences node21 = prefs.node("node2/node1");
+		node21.put("node21 key1", "value 21 1");
+		node21.putInt("node21 key2", 42);
+		prefs.flush();
+
+		final Preferences readPrefs = this.buildPreferences();
+		readPrefs.sync();
+
+		Assert.assertArrayEquals("Bad children names !", new String[] {"node1", "node2"},
+				StreamPreferencesTest.sorted(readPrefs.childrenNames()));
+		Assert.assertEquals("Bad value for node1 key1 !", "value 1 1", readPrefs.node("node1").get("node1 key1", null));
+		Assert.assertEquals("Bad value for node21 key1 !", "value 21 1",
+				readPrefs.node("node2/node1").get("node21 key1", null));
+		Assert.assertEquals("Bad value for node21 key2 !", 42, readPrefs.node("node2/node1").getInt("node21 key2", 0));
+
+		// A later flush replaces the previous image
+		node1.remove("node1 key1");
+		node1.put("node1 key2", "value 1 2");
+		node1.flush();
+		readPrefs.sync();
+
+		Assert.assertNull("node1 key1 should be removed !", readPrefs.node("node1").get("node1 key1", null));
+		Assert.assertEquals("Bad value for node1 key2 !", "value 1 2", readPrefs.node("node1").get("node1 key2", null));
+	}
+
+	@Test
+	public void testFirstFlushKeepsStoredKeys() throws Exception {
+
+		final Preferences prefs = this.buildPreferences();
+		prefs.node("node1").put("node1 key1", "value 1 1");
+		prefs.node("node2/node1").put("node21 key1", "value 21 1");
+		prefs.node("node3").put("node3 key1", "value 3 1");
+		prefs.flush();
+
+		// Never synced : the first flush must not replace the stored tree
+		final Preferences writePrefs = this.buildPreferences();
+		writePrefs.node("node1").put("node1 key2", "value 1 2");
+		writePrefs.node("node2/node1").put("node21 key1", "local value");
+		writePrefs.flush();
+
+		final Preferences readPrefs = this.buildPreferences();
+		readPrefs.sync();
+
+		Assert.assertEquals("Bad value for node1 key1 !", "value 1 1", readPrefs.node("node1").get("node1 key1", null));
+		Assert.assertEquals("Bad value for node1 key2 !", "value 1 2", readPrefs.node("node1").get("node1 key2", null));
+		Assert.assertEquals("Local change should win !", "local value",
+				readPrefs.node("node2/node1").get("node21 key1", null));
+		Assert.assertEquals("Bad value for node3 key1 !", "value 3 1", readPrefs.node("node3").get("node3 key1", null));
+	}
+
+	@Test
+	public void testLoadManyKeys() throws Exception {
+
+		final int keyCount = 100000;
+		final Preferences prefs = this.buildPreferences();
+		for (int k = 0; k < keyCount; k++) {
+			prefs.node("node" + k % 100).put("key" + k, "value" + k);
+		}
+		prefs.flush();
+
+		final Preferences readPrefs = this.buildPreferences();
+		readPrefs.sync();
+
+		for (int k = 0; k < keyCount; k += 997) {
+			Assert.assertEquals("Bad value for key" + k + " !", "value" + k,
+					readPrefs.node("node" + k % 100).get("key" + k, null));
+		}
+		Assert.assertEquals("Bad keys count !", keyCount / 100, readPrefs.node("node0").keys().length);
+	}
+
+	@Test
+	public void testIncrementalFlush() throws Exception {
+
+		final Preferences prefs = this.buildPreferences();
+		for (int k = 0; k < 1000; k++) {
+			prefs.node("node" + k % 10).put("key" + k, "value" + k);
+		}
+		prefs.node("removed").put("key", "value");
+		prefs.flush();
+		final long imageSize = this.storedSize();
+
+		// Only the change is appended
+		prefs.node("node1").put("key1", "changed");
+		prefs.node("node2").remove("key2");
+		prefs.node("removed").removeNode();
+		prefs.node("empty");
+		prefs.flush();
+		Assert.assertTrue("A delta should be small !", this.storedSize() - imageSize < 100);
+
+		Preferences readPrefs = this.buildPreferences();
+		readPrefs.sync();
+		Assert.assertEquals("Bad changed value !", "changed", readPrefs.node("node1").get("key1", null));
+		Assert.assertNull("key2 should be removed !", readPrefs.node("node2").get("key2", null));
+		Assert.assertEquals("Bad unchanged value !", "value3", readPrefs.node("node3").get("key3", null));
+		Assert.assertFalse("Node should be removed !", readPrefs.nodeExists("removed"));
+		Assert.assertTrue("Empty node should exist !", readPrefs.nodeExists("empty"));
+
+		// The deltas are compacted in a new image once there are too many
+		for (int k = 0; k < 300; k++) {
+			prefs.node("node4").put("key4", "value4 " + k);
+			prefs.flush();
+		}
+		// A new image was appended
+		Assert.assertTrue("The log should have been compacted !", this.storedSize() > 2 * imageSize);
+
+		readPrefs = this.buildPreferences();
+		readPrefs.sync();
+		Assert.assertEquals("Bad value after compaction !", "value4 299", readPrefs.node("node4").get("key4", null));
+		Assert.assertEquals("Bad changed value after compaction !", "changed", readPrefs.node("node1").get("key1", null));
+	}
+
+	@Test
+	public void testLoadedRemoval() throws Exception {
+
+		final Preferences prefs = this.buildPreferences();
+		prefs.node("gone/child").put("key", "value");
+		prefs.node("kept").put("key", "value");
+		prefs.flush();
+
+		final Preferences readPrefs = this.buildPreferences();
+		readPrefs.sync();
+		final Preferences readNode = readPrefs.node("gone");
+		Assert.assertEquals("Bad value !", "value", readNode.node("child").get("key", null));
+		final BlockingQueue<String> removedNodes = new LinkedBlockingQueue<String>();
+		readPrefs.addNodeChangeListener(new NodeChangeListener() {
+
+			@Override
+			public void childAdded(final NodeChangeEvent event) {
+			}
+
+			@Override
+			public void childRemoved(final NodeChangeEvent event) {
+				removedNodes.add(event.getChild().name());
+			}
+		});
+
+		// Removed by a delta
+		prefs.node("gone").removeNode();
+		prefs.flush();
+		readPrefs.sync();
+		Assert.assertFalse("Node should be removed !", readPrefs.nodeExists("gone"));
+		Assert.assertArrayEquals("Bad children names !", new String[] {"kept"}, readPrefs.childrenNames());
+		Assert.assertEquals("Removal should be notified !", "gone", removedNodes.poll(10, TimeUnit.SECONDS));
+		try {
+			readNode.put("key", "value");
+			Assert.fail("A removed node should not be written !");
+		} catch (final IllegalStateException e) {
+			// Expected
+		}
+		readPrefs.flush();
+
+		// Read from the start, the input stream of the repository being consumed already
+		final Preferences checkPrefs = new StreamPreferencesFactory(this.streamRepo.openInputStream(),
+				this.streamRepo.getOutputStream()).systemRoot();
+		checkPrefs.sync();
+		Assert.assertFalse("Node should stay removed !", checkPrefs.nodeExists("gone"));
+		Assert.assertTrue("Node should be kept !", checkPrefs.nodeExists("kept"));
+	}
+
+	@Test
+	public void testLazyNodes() throws Exception {
+
+		final Preferences prefs = this.buildPreferences();
+		for (int k = 0; k < 100; k++) {
+			for (int i = 0; i < 10; i++) {
+				prefs.node("node" + k + "/child" + i).put("key", "value " + k + " " + i);
+			}
+		}
+		prefs.flush();
+
+		final Preferences readPrefs = this.buildPreferences();
+		readPrefs.sync();
+		Assert.assertEquals("Bad children count !", 100, readPrefs.childrenNames().length);
+		Assert.assertEquals("Bad grand children count !", 10, readPrefs.node("node7").childrenNames().length);
+		Assert.assertEquals("Bad lazy value !", "value 42 3", readPrefs.node("node42/child3").get("key", null));
+
+		// The image rewritten by the reader copies the subtrees it never materialized
+		for (int k = 0; k < 300; k++) {
+			readPrefs.node("node42/child3").putInt("counter", k);
+			readPrefs.flush();
+		}
+
+		final Preferences checkPrefs = this.buildPreferences();
+		checkPrefs.sync();
+		Assert.assertEquals("Bad copied value !", "value 99 9", checkPrefs.node("node99/child9").get("key", null));
+		Assert.assertEquals("Bad changed value !", 299, checkPrefs.node("node42/child3").getInt("counter", 0));
+		Assert.assertEquals("Bad unchanged value !", "value 42 3", checkPrefs.node("node42/child3").get("key", null));
+	}
+
+	@Test
+	public void testFlatKeyStore() throws Exception {
+
+		final Preferences prefs = new StreamPreferencesFactory(this.streamRepo.getInputStream(),
+				this.streamRepo.getOutputStream(), true).systemRoot();
+		for (int k = 0; k < 1000; k++) {
+			final Preferences node = prefs.node("node" + k);
+			node.put("enabled", "true");
+			node.putInt("threshold", k);
+		}
+		prefs.node("node1").remove("enabled");
+		prefs.node("node2").removeNode();
+		prefs.node("node3").clear();
+
+		Assert.assertArrayEquals("Bad keys !", new String[] {"threshold"}, prefs.node("node1").keys());
+		Assert.assertFalse("node2 should be removed !", prefs.nodeExists("node2"));
+		Assert.assertEquals("node3 should be cleared !", 0, prefs.node("node3").keys().length);
+		Assert.assertEquals("Bad value !", 999, prefs.node("node999").getInt("threshold", 0));
+		prefs.flush();
+
+		final Preferences readPrefs = new StreamPreferencesFactory(this.streamRepo.getInputStream(),
+				this.streamRepo.getOutputStream(), true).systemRoot();
+		readPrefs.sync();
+		Assert.assertEquals("Bad children count !", 999, readPrefs.childrenNames().length);
+		Assert.assertEquals("Bad loaded value !", "true", readPrefs.node("node500").get("enabled", null));
+		Assert.assertNull("Bad removed key !", readPrefs.node("node1").get("enabled", null));
+		Assert.assertEquals("Bad loaded keys !", 2, readPrefs.node("node42").keys().length);
+	}
+
+	@Test
+	public void testLeafNodes() throws Exception {
+
+		final Preferences prefs = new StreamPreferencesFactory(this.streamRepo.getInputStream(),
+				this.streamRepo.getOutputStream(), true).systemRoot();
+		for (int k = 0; k < 1000; k++) {
+			prefs.node("node" + k % 10 + "/leaf" + k).putInt("threshold", k);
+		}
+		prefs.flush();
+
+		// Only the nodes with children allocate a map of children
+		final StreamPreferences readPrefs = (StreamPreferences) new StreamPreferencesFactory(
+				this.streamRepo.getInputStream(), this.streamRepo.getOutputStream(), true).systemRoot();
+		readPrefs.sync();
+		for (int k = 0; k < 1000; k += 7) {
+			final StreamPreferences leaf = (StreamPreferences) readPrefs.node("node" + k % 10 + "/leaf" + k);
+			Assert.assertEquals("Bad value !", k, leaf.getInt("threshold", 0));
+			Assert.assertFalse("A leaf should not allocate a map of children !", leaf.hasChildrenMap());
+		}
+		Assert.assertTrue("Bad parent !", ((StreamPreferences) readPrefs.node("node3")).hasChildrenMap());
+		Assert.assertEquals("Bad children count !", 100, readPrefs.node("node3").childrenNames().length);
+
+		final StreamPreferences leaf = (StreamPreferences) readPrefs.node("node3/leaf3");
+		leaf.node("child").put("key", "value");
+		Assert.assertTrue("The map of children should be created !", leaf.hasChildrenMap());
+		Assert.assertArrayEquals("Bad children names !", new String[] {"child"}, leaf.childrenNames());
+	}
+
+	@Test
+	public void testCachedReads() throws Exception {
+
+		final StreamPreferences node = (StreamPreferences) this.buildPreferences().node("hot");
+		node.put("threshold", "0");
+		Assert.assertEquals("Bad cached value !", "0", node.getCached("threshold", null));
+		Assert.assertEquals("Bad default value !", "default", node.getCached("missing", "default"));
+
+		// Each change is visible by the next cached read
+		final int writes = 10000;
+		final Thread writer = new Thread() {
+
+			@Override
+			public void run() {
+				for (int k = 1; k <= writes; k++) {
+					node.putInt("threshold", k);
+				}
+			}
+		};
+		writer.start();
+		int last = 0;
+		while (last < writes) {
+			final int read = Integer.parseInt(node.getCached("threshold", null));
+			Assert.assertTrue("Cached reads should not go back in time !", read >= last);
+			last = read;
+		}
+		writer.join();
+
+		final Map<String, String> snapshot = node.snapshot();
+		Assert.assertEquals("Bad snapshot !", Collections.singletonMap("threshold", String.valueOf(writes)), snapshot);
+
+		node.removeNode();
+		try {
+			node.getCached("threshold", null);
+			Assert.fail("A removed node should not be read !");
+		} catch (final IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testJournaledFile() throws Exception {
+
+		final File directory = Files.createTempDirectory("prefs").toFile();
+		final File file = new File(directory, "prefs");
+		try {
+			StreamPreferencesFactory factory = new StreamPreferencesFactory(file, false);
+			final Preferences prefs = factory.systemRoot();
+			prefs.node("node1").put("key1", "value 1");
+			prefs.flush();
+			prefs.node("node1").put("key2", "value 2");
+			prefs.node("node2").put("key1", "value 2 1");
+			prefs.flush();
+
+			// Crash in the middle of a flush : the journal ends with an incomplete record
+			final File journal = new File(directory, "prefs.journal");
+			final long journalSize = journal.length();
+			final FileOutputStream tornWrite = new FileOutputStream(journal, true);
+			try {
+				tornWrite.write(new byte[] {2, 0, 0, 1, 0, 42});
+			} finally {
+				tornWrite.close();
+			}
+
+			factory = new StreamPreferencesFactory(file, false);
+			Preferences readPrefs = factory.systemRoot();
+			readPrefs.sync();
+			Assert.assertEquals("Incomplete record should be truncated !", journalSize, journal.length());
+			Assert.assertEquals("Bad checkpoint value !", "value 1", readPrefs.node("node1").get("key1", null));
+			Assert.assertEquals("Bad journal value !", "value 2", readPrefs.node("node1").get("key2", null));
+			Assert.assertEquals("Bad journal value !", "value 2 1", readPrefs.node("node2").get("key1", null));
+
+			// Enough deltas write a new checkpoint and start a new journal
+			for (int k = 0; k < 300; k++) {
+				readPrefs.node("node2").putInt("counter", k);
+				readPrefs.flush();
+			}
+			factory.close();
+			Assert.assertFalse("No temporary file should be left !", new File(directory, "prefs.tmp").exists());
+
+			factory = new StreamPreferencesFactory(file, false);
+			readPrefs = factory.systemRoot();
+			readPrefs.sync();
+			Assert.assertEquals("Bad value after checkpoint !", 299, readPrefs.node("node2").getInt("counter", 0));
+			Assert.assertEquals("Bad value after checkpoint !", "value 1", readPrefs.node("node1").get("key1", null));
+			factory.close();
+
+			// Reopened and written without a sync : the recovered keys are kept
+			factory = new StreamPreferencesFactory(file, false);
+			factory.systemRoot().node("node3").put("key1", "value 3 1");
+			factory.systemRoot().flush();
+			factory.close();
+
+			factory = new StreamPreferencesFactory(file, false);
+			readPrefs = factory.systemRoot();
+			Assert.assertEquals("Bad value after reopening !", "value 3 1", readPrefs.node("node3").get("key1", null));
+			Assert.assertEquals("Bad value after reopening !", 299, readPrefs.node("node2").getInt("counter", 0));
+			Assert.assertEquals("Bad value after reopening !", "value 1", readPrefs.node("node1").get("key1", null));
+			factory.close();
+		} finally {
+			for (final File child : directory.listFiles()) {
+				child.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void testCheckpointedRemoval() throws Exception {
+
+		final File directory = Files.createTempDirectory("prefs").toFile();
+		final File file = new File(directory, "prefs");
+		final StreamPreferencesFactory writer = new StreamPreferencesFactory(file, false);
+		final StreamPreferencesFactory reader = new StreamPreferencesFactory(file, false);
+		try {
+			final Preferences writerPrefs = writer.systemRoot();
+			writerPrefs.node("gone").put("k", "v");
+			writerPrefs.node("gone/child").put("k", "v");
+			writerPrefs.node("lazy").put("k", "v");
+			writerPrefs.node("kept").put("k", "v");
+			writerPrefs.flush();
+
+			final Preferences readerPrefs = reader.systemRoot();
+			readerPrefs.sync();
+			Assert.assertEquals("Bad value !", "v", readerPrefs.node("gone").get("k", null));
+			Assert.assertEquals("Bad value !", "v", readerPrefs.node("gone/child").get("k", null));
+
+			// The deltas outweigh the image : the next flush writes a new image
+			final char[] big = new char[8192];
+			Arrays.fill(big, 'x');
+			writerPrefs.node("kept").put("big", new String(big));
+			writerPrefs.flush();
+			writerPrefs.node("gone").removeNode();
+			writerPrefs.node("lazy").removeNode();
+			writerPrefs.flush();
+
+			readerPrefs.sync();
+			Assert.assertArrayEquals("Bad children names !", new String[] {"kept"},
+					StreamPreferencesTest.sorted(readerPrefs.childrenNames()));
+			Assert.assertFalse("Node should be removed !", readerPrefs.nodeExists("gone"));
+			Assert.assertFalse("Node should be removed !", readerPrefs.nodeExists("lazy"));
+			Assert.assertNull("Removed key should not be read !", readerPrefs.node("gone").get("k", null));
+			Assert.assertEquals("Bad value !", new String(big), readerPrefs.node("kept").get("big", null));
+		} finally {
+			reader.close();
+			writer.close();
+			for (final File child : directory.listFiles()) {
+				child.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void testFileWatching() throws Exception {
+
+		final File directory = Files.createTempDirectory("prefs").toFile();
+		final File file = new File(directory, "prefs");
+		final StreamPreferencesFactory writer = new StreamPreferencesFactory(file, false);
+		final StreamPreferencesFactory reader = new StreamPreferencesFactory(file, false);
+		try {
+			final Preferences writerPrefs = writer.systemRoot();
+			writerPrefs.node("node1").put("key1", "value 1");
+			writerPrefs.flush();
+
+			final Preferences readerPrefs = reader.systemRoot();
+			readerPrefs.sync();
+			final Preferences readerNode = readerPrefs.node("node1");
+			Assert.assertEquals("Bad value !", "value 1", readerNode.get("key1", null));
+
+			final BlockingQueue<PreferenceChangeEvent> changes = new LinkedBlockingQueue<PreferenceChangeEvent>();
+			readerNode.addPreferenceChangeListener(new PreferenceChangeListener() {
+
+				@Override
+				public void preferenceChange(final PreferenceChangeEvent event) {
+					changes.add(event);
+				}
+			});
+			final BlockingQueue<String> addedNodes = new LinkedBlockingQueue<String>();
+			readerPrefs.addNodeChangeListener(new NodeChangeListener() {
+
+				@Override
+				public void childAdded(final NodeChangeEvent event) {
+					addedNodes.add(event.getChild().name());
+				}
+
+				@Override
+				public void childRemoved(final NodeChangeEvent event) {
+				}
+			});
+			reader.watch();
+
+			writerPrefs.node("node1").put("key1", "value 1 bis");
+			writerPrefs.node("node1").put("key2", "value 2");
+			writerPrefs.node("node2").put("key1", "value 2 1");
+			writerPrefs.flush();
+
+			final Map<String, String> changed = new HashMap<String, String>();
+			for (int k = 0; k < 2; k++) {
+				final PreferenceChangeEvent event = changes.poll(10, TimeUnit.SECONDS);
+				Assert.assertNotNull("Change should be notified !", event);
+				changed.put(event.getKey(), event.getNewValue());
+			}
+			Assert.assertEquals("Bad change notified !", "value 1 bis", changed.get("key1"));
+			Assert.assertEquals("Bad change notified !", "value 2", changed.get("key2"));
+			Assert.assertEquals("Bad node notified !", "node2", addedNodes.poll(10, TimeUnit.SECONDS));
+			Assert.assertEquals("Bad reloaded value !", "value 2 1", readerPrefs.node("node2").get("key1", null));
+
+			// Checkpoint written by the writer
+			for (int k = 0; k < 300; k++) {
+				writerPrefs.node("node1").putInt("counter", k);
+				writerPrefs.flush();
+			}
+			writerPrefs.node("node1").remove("key2");
+			writerPrefs.flush();
+
+			final long deadline = System.currentTimeMillis() + 10000;
+			PreferenceChangeEvent removal = null;
+			while (removal == null && System.currentTimeMillis() < deadline) {
+				final PreferenceChangeEvent event = changes.poll(100, TimeUnit.MILLISECONDS);
+				if (event != null && "key2".equals(event.getKey())) {
+					removal = event;
+				}
+			}
+			Assert.assertNotNull("Removal should be notified !", removal);
+			Assert.assertNull("Bad removal notified !", removal.getNewValue());
+			Assert.assertEquals("Bad reloaded value !", 299, readerNode.getInt("counter", 0));
+		} finally {
+			reader.close();
+			writer.close();
+			for (final File child : directory.listFiles()) {
+				child.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+
+		final StreamPreferences prefs = (StreamPreferences) this.buildPreferences();
+		prefs.node("node1").put("removed", "value");
+		prefs.flush();
+		final long initialSize = this.storedSize();
+
+		final BlockingQueue<PreferenceChangeEvent> events = new LinkedBlockingQueue<PreferenceChangeEvent>();
+		prefs.node("node1").addPreferenceChangeListener(new PreferenceChangeListener() {
+
+			@Override
+			public void preferenceChange(final PreferenceChangeEvent event) {
+				events.add(event);
+			}
+		});
+		final BlockingQueue<StreamPreferences.BatchChangeEvent> batchEvents = new LinkedBlockingQueue<
+				StreamPreferences.BatchChangeEvent>();
+		((StreamPreferences) prefs.node("node1")).addBatchChangeListener(new StreamPreferences.BatchChangeListener() {
+
+			@Override
+			public void batchChange(final StreamPreferences.BatchChangeEvent event) {
+				batchEvents.add(event);
+			}
+		});
+
+		final Map<String, Map<String, String>> changes = new HashMap<String, Map<String, String>>();
+		final Map<String, String> node1Changes = new HashMap<String, String>();
+		for (int k = 0; k < 1000; k++) {
+			node1Changes.put("key" + k, "value" + k);
+		}
+		node1Changes.put("removed", null);
+		changes.put("node1", node1Changes);
+		changes.put("node2/node21", Collections.singletonMap("key", "value 2 1"));
+		prefs.putAll(changes);
+
+		// Flushed by the batch
+		final long batchSize = this.storedSize();
+		Assert.assertTrue("The batch should be flushed !", batchSize > initialSize);
+		prefs.flush();
+		Assert.assertEquals("Nothing should be left to flush !", batchSize, this.storedSize());
+
+		// One standard event by key
+		final Map<String, String> notified = new HashMap<String, String>();
+		for (int k = 0; k < node1Changes.size(); k++) {
+			final PreferenceChangeEvent event = events.poll(10, TimeUnit.SECONDS);
+			Assert.assertNotNull("Missing event !", event);
+			Assert.assertNotNull("Event without key !", event.getKey());
+			notified.put(event.getKey(), event.getNewValue());
+		}
+		Assert.assertEquals("Bad changes notified !", node1Changes, notified);
+		Assert.assertNull("One event by key expected !", events.poll(100, TimeUnit.MILLISECONDS));
+
+		final StreamPreferences.BatchChangeEvent batchEvent = batchEvents.poll(10, TimeUnit.SECONDS);
+		Assert.assertNotNull("Missing batch event !", batchEvent);
+		Assert.assertSame("Bad batch node !", prefs.node("node1"), batchEvent.getNode());
+		Assert.assertEquals("Bad batch changes !", node1Changes, batchEvent.getChanges());
+		Assert.assertNull("One batch event by node expected !", batchEvents.poll(100, TimeUnit.MILLISECONDS));
+
+		final Preferences readPrefs = this.buildPreferences();
+		readPrefs.sync();
+		Assert.assertEquals("Bad batch value !", "value999", readPrefs.node("node1").get("key999", null));
+		Assert.assertNull("Key should be removed !", readPrefs.node("node1").get("removed", null));
+		Assert.assertEquals("Bad batch value !", "value 2 1", readPrefs.node("node2/node21").get("key", null));
+
+		// An invalid batch is not applied
+		final Map<String, String> invalidChanges = new HashMap<String, String>();
+		invalidChanges.put("key0", "not applied");
+		invalidChanges.put(new String(new char[Preferences.MAX_KEY_LENGTH + 1]), "value");
+		try {
+			prefs.putAll(Collections.singletonMap("node1", invalidChanges));
+			Assert.fail("Invalid key should be rejected !");
+		} catch (final IllegalArgumentException e) {
+			// Expected
+		}
+		Assert.assertEquals("Invalid batch should not be applied !", "value0", prefs.node("node1").get("key0", null));
+	}
+
+	@Test
+	public void testTypedValues() throws Exception {
+
+		final Preferences prefs = this.buildPreferences();
+		final Preferences numbers = prefs.node("numbers");
+		int binarySize = 0;
+		for (int k = 0; k < 1000; k++) {
+			numbers.putInt("key" + k, 1000000000 + k);
+			// Key length, key, type and int
+			binarySize += 2 + ("key" + k).length() + 1 + 4;
+		}
+		final byte[] bytes = new byte[100];
+		new Random(42).nextBytes(bytes);
+		final Preferences node = prefs.node("node");
+		node.putLong("long", Long.MIN_VALUE);
+		node.putByteArray("bytes", bytes);
+		node.putDouble("double", 0.5);
+		node.put("zeros", "007");
+		node.put("letters", "abcdefghijklmnopqrst");
+		node.put("notBase64", "abcdefghijklmno=");
+		prefs.flush();
+
+		// The numbers are not persisted as strings
+		Assert.assertTrue("Numbers should be persisted in binary !", this.storedSize() < binarySize + 1000);
+
+		final Preferences readPrefs = this.buildPreferences();
+		readPrefs.sync();
+		final Preferences readNumbers = readPrefs.node("numbers");
+		Assert.assertEquals("Bad int value !", 1000000999, readNumbers.getInt("key999", 0));
+		Assert.assertEquals("Bad string of int value !", "1000000999", readNumbers.get("key999", null));
+		final Preferences readNode = readPrefs.node("node");
+		Assert.assertEquals("Bad long value !", Long.MIN_VALUE, readNode.getLong("long", 0));
+		Assert.assertArrayEquals("Bad byte array value !", bytes, readNode.getByteArray("bytes", null));
+		Assert.assertEquals("Bad Base64 value !", node.get("bytes", null), readNode.get("bytes", null));
+		Assert.assertEquals("Bad double value !", 0.5, readNode.getDouble("double", 0), 0);
+		Assert.assertEquals("Values should be given back as written !", "007", readNode.get("zeros", null));
+		Assert.assertEquals("Values should be given back as written !", "abcdefghijklmnopqrst",
+				readNode.get("letters", null));
+		Assert.assertEquals("Values should be given back as written !", "abcdefghijklmno=",
+				readNode.get("notBase64", null));
+
+		// Decoded values follow the changes
+		Assert.assertEquals("Bad default value !", 42, readNode.getInt("letters", 42));
+		readNode.getByteArray("bytes", null)[0]++;
+		Assert.assertArrayEquals("Decoded array should not be shared !", bytes, readNode.getByteArray("bytes", null));
+		readNode.putInt("long", 7);
+		Assert.assertEquals("Bad changed value !", 7, readNode.getLong("long", 0));
+		readNode.remove("long");
+		Assert.assertEquals("Bad removed value !", 0, readNode.getLong("long", 0));
+
+		// A key read as two types
+		readNode.putInt("number", 12);
+		for (int k = 0; k < 3; k++) {
+			Assert.assertEquals("Bad int value !", 12, readNode.getInt("number", 0));
+			Assert.assertEquals("Bad long value !", 12L, readNode.getLong("number", 0));
+			Assert.assertEquals("Bad double value !", 12.0, readNode.getDouble("number", 0), 0);
+		}
+
+		try {
+			readNode.getInt(null, 0);
+			Assert.fail("Null key should be rejected !");
+		} catch (final NullPointerException e) {
+			// Expected, as the other Preferences
+		}
+	}
+
+	@Test
+	public void testWriteBehind() throws Exception {
+
+		final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		try {
+			// Long period : only the pending changes count trigger a flush
+			final StreamPreferencesFactory factory = new StreamPreferencesFactory(this.streamRepo.getInputStream(),
+					this.streamRepo.getOutputStream(), executor, 1, TimeUnit.HOURS, 100);
+			final Preferences prefs = factory.systemRoot();
+
+			// Coalesced : only one pending change
+			for (int k = 0; k < 10000; k++) {
+				prefs.putInt("counter", k);
+			}
+			Assert.assertEquals("Nothing should be written yet !", 0, this.storedSize());
+
+			// Enough distinct changes trigger a background flush
+			for (int k = 0; k < 100; k++) {
+				prefs.put("key" + k, "value" + k);
+			}
+			final long deadline = System.currentTimeMillis() + 5000;
+			while (this.streamRepo.getVersion() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			Assert.assertEquals("One write should be done !", 1, this.streamRepo.getVersion());
+
+			prefs.put("last", "value");
+			factory.close();
+			Assert.assertEquals("Closing should flush the pending changes !", 2, this.streamRepo.getVersion());
+
+			final Preferences readPrefs = this.buildPreferences();
+			readPrefs.sync();
+			Assert.assertEquals("Bad coalesced value !", 9999, readPrefs.getInt("counter", 0));
+			Assert.assertEquals("Bad value !", "value99", readPrefs.get("key99", null));
+			Assert.assertEquals("Bad last value !", "value", readPrefs.get("last", null));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private long storedSize() throws Exception {
+		final InputStream content = this.streamRepo.openInputStream();
+		try {
+			return content.available();
+		} finally {
+			content.close();
+		}
+	}
+
+	private static String[] sorted(final String[] names) {
+		Arrays.sort(names);
+		return names;
+	}
+
 }
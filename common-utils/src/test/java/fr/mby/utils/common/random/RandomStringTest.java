@@ -0,0 +1,310 @@
+/**
+ * Copyright 2013 Maxime Bossard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fr.mby.utils.common.random;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+/**
+ * Test the RandomString generator.
+ * 
+ * @author Maxime Bossard - 2013
+ * 
+ */
+@RunWith(BlockJUnit4ClassRunner.class)
+public class RandomStringTest {
+
+	private static final String ALPHABET = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ_-";
+
+	@Test
+	public void testConcurrentGeneration() throws Exception {
+
+		// Short strings : collisions are frequent and must be retried
+		final RandomString randomString = new RandomString(3);
+		final Set<String> generated = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final AtomicInteger duplicates = new AtomicInteger();
+		final int threadCount = 8;
+		final int perThread = 10000;
+		final CountDownLatch done = new CountDownLatch(threadCount);
+		for (int t = 0; t < threadCount; t++) {
+			new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						for (int k = 0; k < perThread; k++) {
+							final String value = randomString.nextString();
+							if (!generated.add(value) || !RandomStringTest.isValid(value, 3)) {
+								duplicates.incrementAndGet();
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+
+		Assert.assertEquals("Strings should be unique and valid !", 0, duplicates.get());
+		Assert.assertEquals("Bad generated count !", threadCount * perThread, generated.size());
+	}
+
+	@Test
+	public void testPermutedGeneration() throws Exception {
+
+		// All the strings of the space are generated once
+		final RandomString small = RandomString.permuted(2, 42);
+		final Set<String> generated = new HashSet<String>();
+		for (int k = 0; k < 64 * 64 - 10; k++) {
+			final String value = small.nextString();
+			Assert.assertTrue("Bad string !", RandomStringTest.isValid(value, 2));
+			Assert.assertTrue("Strings should be unique !", generated.add(value));
+		}
+		// A batch too big does not use up the strings left
+		try {
+			small.nextStrings(new char[11 * 2], 0, 11);
+			Assert.fail("The batch should be rejected !");
+		} catch (final IllegalStateException e) {
+			// Expected
+		}
+		final char[] last = new char[10 * 2];
+		small.nextStrings(last, 0, 10);
+		for (int k = 0; k < 10; k++) {
+			Assert.assertTrue("Strings should be unique !", generated.add(new String(last, k * 2, 2)));
+		}
+		try {
+			small.nextString();
+			Assert.fail("The space should be exhausted !");
+		} catch (final IllegalStateException e) {
+			// Expected
+		}
+
+		// Same key, same sequence of permuted counters
+		final RandomString first = RandomString.permuted(12, 7);
+		final RandomString second = RandomString.permuted(12, 7);
+		generated.clear();
+		for (int k = 0; k < 100000; k++) {
+			final String value = first.nextString();
+			Assert.assertTrue("Bad string !", RandomStringTest.isValid(value, 12));
+			Assert.assertTrue("Strings should be unique !", generated.add(value));
+			Assert.assertEquals("Bad permuted counter !", value.substring(2), second.nextString().substring(2));
+		}
+		Assert.assertFalse("Counters should not be visible !", generated.contains("000000000001"));
+	}
+
+	@Test
+	public void testFilteredGeneration() throws Exception {
+
+		// Dense space : the window must be enforced
+		final RandomString randomString = RandomString.filtered(3, 4096, 0.01);
+		final int window = new RotatingBloomFilter(4096, 0.01).capacity();
+		Assert.assertTrue("Bad window !", window > 1000);
+
+		final Deque<String> recent = new ArrayDeque<String>();
+		final Set<String> recentSet = new HashSet<String>();
+		for (int k = 0; k < 100000; k++) {
+			final String value = randomString.nextString();
+			Assert.assertTrue("Bad string !", RandomStringTest.isValid(value, 3));
+			Assert.assertTrue("Strings should be unique in the window !", recentSet.add(value));
+			recent.addLast(value);
+			if (recent.size() > window) {
+				recentSet.remove(recent.removeFirst());
+			}
+		}
+	}
+
+	@Test
+	public void testBatchGeneration() throws Exception {
+
+		final RandomString randomString = RandomString.filtered(8, 64 * 1024, 0.001);
+		final int count = 80000;
+		final char[] chars = new char[2 + count * 8];
+		randomString.nextStrings(chars, 2, count);
+		Assert.assertEquals("Offset should be kept !", 0, chars[1]);
+
+		// All the symbols are drawn evenly
+		final int[] symbolCounts = new int[RandomStringTest.ALPHABET.length()];
+		final Set<String> generated = new HashSet<String>();
+		for (int k = 0; k < count; k++) {
+			final String value = new String(chars, 2 + k * 8, 8);
+			Assert.assertTrue("Bad string !", RandomStringTest.isValid(value, 8));
+			Assert.assertTrue("Strings should be unique !", generated.add(value));
+			for (int i = 0; i < value.length(); i++) {
+				symbolCounts[RandomStringTest.ALPHABET.indexOf(value.charAt(i))]++;
+			}
+		}
+		final int expected = count * 8 / symbolCounts.length;
+		for (final int symbolCount : symbolCounts) {
+			Assert.assertTrue("Symbols should be uniform !", Math.abs(symbolCount - expected) < expected / 10);
+		}
+
+		// Batches in bytes are generated by chunks
+		final int byteCount = 2500;
+		final RandomString permuted = RandomString.permuted(12, 3);
+		final byte[] bytes = new byte[byteCount * 12];
+		permuted.nextStrings(bytes, 0, byteCount);
+		final ByteBuffer buffer = ByteBuffer.allocate(byteCount * 12);
+		permuted.nextStrings(buffer, byteCount);
+		Assert.assertFalse("Buffer should be filled !", buffer.hasRemaining());
+		final Iterator<String> iterator = permuted.iterator();
+		generated.clear();
+		for (int k = 0; k < byteCount; k++) {
+			Assert.assertTrue("Strings should be unique !", generated.add(new String(bytes, k * 12, 12, "US-ASCII")));
+			Assert.assertTrue("Strings should be unique !",
+					generated.add(new String(buffer.array(), k * 12, 12, "US-ASCII")));
+			Assert.assertTrue("Strings should be unique !", generated.add(iterator.next()));
+		}
+
+		try {
+			randomString.nextStrings(new char[15], 0, 2);
+			Assert.fail("Too small array should be rejected !");
+		} catch (final IndexOutOfBoundsException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testTimeOrderedGeneration() throws Exception {
+
+		final RandomString randomString = RandomString.timeOrdered(20);
+		final long start = System.currentTimeMillis();
+		String previous = "";
+		for (int k = 0; k < 100000; k++) {
+			final String value = randomString.nextString();
+			Assert.assertTrue("Bad string !", RandomStringTest.isValid(value, 20));
+			Assert.assertTrue("Strings should be increasing !", value.compareTo(previous) > 0);
+			previous = value;
+		}
+		final char[] batch = new char[100 * 20];
+		randomString.nextStrings(batch, 0, 100);
+		for (int k = 0; k < 100; k++) {
+			final String value = new String(batch, k * 20, 20);
+			Assert.assertTrue("Batch strings should be increasing !", value.compareTo(previous) > 0);
+			previous = value;
+		}
+
+		// The time is readable in the first characters
+		final String sortedAlphabet = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+		final String value = RandomString.timeOrdered(20).nextString();
+		long time = 0;
+		for (int k = 0; k < 8; k++) {
+			time = time << 6 | sortedAlphabet.indexOf(value.charAt(k));
+		}
+		Assert.assertTrue("Bad time !", time >= start && time <= System.currentTimeMillis());
+
+		// Later strings of another generator sort after
+		Thread.sleep(10);
+		final String later = RandomString.timeOrdered(20).nextString();
+		Assert.assertTrue("Strings should sort by time !", later.compareTo(previous) > 0);
+	}
+
+	@Test
+	public void testPartitionedGeneration() throws Exception {
+
+		// Dense space shared by several JVMs : 3 characters, 2 bits of node id, so 4 slices of 2^16 strings. Nodes 0 to 2
+		// run in their own JVM, node 3 in this one.
+		final int nodeCount = 3;
+		final int perNode = 30000;
+		final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		final List<Process> processes = new ArrayList<Process>();
+		for (int nodeId = 0; nodeId < nodeCount; nodeId++) {
+			final ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					RandomStringTest.class.getName(), String.valueOf(nodeId), String.valueOf(perNode));
+			// Only the strings on the output : the errors go to the output of the test
+			builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+			processes.add(builder.start());
+		}
+
+		final Set<String> generated = new HashSet<String>();
+		for (final Process process : processes) {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(),
+					"US-ASCII"));
+			try {
+				String value;
+				while ((value = reader.readLine()) != null) {
+					Assert.assertTrue("Bad string: " + value, RandomStringTest.isValid(value, 3));
+					Assert.assertTrue("Strings should be unique across the nodes !", generated.add(value));
+				}
+			} finally {
+				reader.close();
+			}
+			Assert.assertEquals("Node generation failed !", 0, process.waitFor());
+		}
+		Assert.assertEquals("Bad generated count !", nodeCount * perNode, generated.size());
+
+		// A node slice is exhausted, not shared
+		final RandomString node = RandomString.partitioned(3, 3, 2, 42);
+		for (int k = 0; k < 1 << 16; k++) {
+			Assert.assertFalse("Strings should be unique across the nodes !", generated.contains(node.nextString()));
+		}
+		try {
+			node.nextString();
+			Assert.fail("The node slice should be exhausted !");
+		} catch (final IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * A node of testPartitionedGeneration, run in its own JVM : prints the strings generated.
+	 * 
+	 * @param args
+	 *            the node id and the number of strings
+	 */
+	public static void main(final String[] args) {
+		final RandomString randomString = RandomString.partitioned(3, Integer.parseInt(args[0]), 2, 42);
+		final int count = Integer.parseInt(args[1]);
+		final StringBuilder output = new StringBuilder(count * 4);
+		for (int k = 0; k < count; k++) {
+			output.append(randomString.nextString()).append('\n');
+		}
+		System.out.print(output);
+		System.out.flush();
+	}
+
+	private static boolean isValid(final String value, final int length) {
+		if (value.length() != length) {
+			return false;
+		}
+		for (int k = 0; k < value.length(); k++) {
+			if (RandomStringTest.ALPHABET.indexOf(value.charAt(k)) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}